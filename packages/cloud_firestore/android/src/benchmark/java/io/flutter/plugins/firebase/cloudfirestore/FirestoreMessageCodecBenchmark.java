@@ -0,0 +1,308 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.cloudfirestore;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.GeoPoint;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding with {@link FirestoreMessageCodec} on the host JVM.
+ *
+ * <p>Each benchmark is warmed up, then run for a fixed number of timed iterations. It reports the
+ * average time per operation, the encoded size of the message and the bytes allocated per operation
+ * on the benchmark thread. Run it from the example app with:
+ *
+ * <pre>
+ *   cd example/android
+ *   ./gradlew :cloud_firestore:codecBenchmark [-Pbenchmark=&lt;name filter&gt;]
+ * </pre>
+ *
+ * <p>There are two groups of benchmarks:
+ *
+ * <ul>
+ *   <li>Lists of values of each Firestore type (DATE_TIME, TIMESTAMP, GEO_POINT, BLOB,
+ *       DOCUMENT_REFERENCE). Document references are created with Mockito, since they cannot be
+ *       created without an initialized app. Their timings therefore include mock dispatch, and only
+ *       their encoding is measured.
+ *   <li>Query snapshot messages with the structure that {@code parseQuerySnapshot} produces, for
+ *       synthetic documents of varying width and depth. Each is encoded with keyed maps and with
+ *       standard maps. {@code parseQuerySnapshot} itself cannot run here, because it needs
+ *       snapshots created by the SDK.
+ * </ul>
+ */
+public final class FirestoreMessageCodecBenchmark {
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int MEASUREMENT_ITERATIONS = 5;
+  private static final long ITERATION_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+  private static final int VALUE_COUNT = 1000;
+  private static final int DOCUMENT_COUNT = 100;
+  private static final int[] WIDTHS = {5, 20, 50};
+  private static final int[] DEPTHS = {1, 3};
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  // Results are folded into this field so that the JIT cannot drop the measured work.
+  private static volatile long sink;
+
+  private final String filter;
+
+  private FirestoreMessageCodecBenchmark(String filter) {
+    this.filter = filter;
+  }
+
+  private abstract static class Operation {
+    /** Runs the operation once and returns a value derived from its result. */
+    abstract long run();
+  }
+
+  public static void main(String[] args) {
+    new FirestoreMessageCodecBenchmark(args.length > 0 ? args[0] : "").runAll();
+  }
+
+  private void runAll() {
+    System.out.println(
+        String.format("%-44s %14s %12s %14s", "Benchmark", "ns/op", "bytes/op", "alloc B/op"));
+    Random random = new Random(42);
+
+    List<Object> dates = new ArrayList<>(VALUE_COUNT);
+    List<Object> timestamps = new ArrayList<>(VALUE_COUNT);
+    List<Object> geoPoints = new ArrayList<>(VALUE_COUNT);
+    List<Object> blobs = new ArrayList<>(VALUE_COUNT);
+    for (int i = 0; i < VALUE_COUNT; i++) {
+      dates.add(new Date(random.nextLong() >>> 20));
+      timestamps.add(timestamp(random));
+      geoPoints.add(geoPoint(random));
+      blobs.add(Blob.fromBytes(bytes(random, 64)));
+    }
+    benchmarkValues("DATE_TIME", dates, true);
+    benchmarkValues("TIMESTAMP", timestamps, true);
+    benchmarkValues("GEO_POINT", geoPoints, true);
+    benchmarkValues("BLOB", blobs, true);
+    benchmarkValues("DOCUMENT_REFERENCE", references(VALUE_COUNT), false);
+
+    for (int width : WIDTHS) {
+      for (int depth : DEPTHS) {
+        Map<String, Object> message = snapshotMessage(random, width, depth);
+        String name = "snapshot width=" + width + " depth=" + depth;
+        benchmarkMessage(name + " keyed", FirestoreMessageCodec.INSTANCE, message, true);
+        benchmarkMessage(
+            name + " standard", FirestoreMessageCodec.WITHOUT_KEYED_MAPS, message, true);
+      }
+    }
+  }
+
+  private void benchmarkValues(String type, List<Object> values, boolean decode) {
+    benchmarkMessage(type, FirestoreMessageCodec.INSTANCE, values, decode);
+  }
+
+  private void benchmarkMessage(
+      String name, final FirestoreMessageCodec codec, final Object message, boolean decode) {
+    final ByteBuffer encoded = codec.encodeMessage(message);
+    final int size = encoded.position();
+    measure(
+        name + " encode",
+        size,
+        new Operation() {
+          @Override
+          long run() {
+            return codec.encodeMessage(message).position();
+          }
+        });
+    if (!decode) return;
+    measure(
+        name + " decode",
+        size,
+        new Operation() {
+          @Override
+          long run() {
+            encoded.rewind();
+            return codec.decodeMessage(encoded).hashCode();
+          }
+        });
+  }
+
+  private void measure(String name, int size, Operation operation) {
+    if (!name.contains(filter)) return;
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      iterate(operation);
+    }
+    long operations = 0;
+    long nanos = 0;
+    long allocated = 0;
+    for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+      long[] result = iterate(operation);
+      operations += result[0];
+      nanos += result[1];
+      allocated += result[2];
+    }
+    System.out.println(
+        String.format(
+            "%-44s %,14.1f %,12d %,14d",
+            name,
+            (double) nanos / operations,
+            size,
+            allocated < 0 ? -1 : allocated / operations));
+  }
+
+  /** Runs {@code operation} for one iteration and returns the operations, nanos and bytes used. */
+  private static long[] iterate(Operation operation) {
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+    long end = start + ITERATION_NANOS;
+    long operations = 0;
+    long now;
+    long result = 0;
+    do {
+      result += operation.run();
+      operations++;
+      now = System.nanoTime();
+    } while (now < end);
+    long allocatedAfter = allocatedBytes();
+    sink += result;
+    long allocated = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+    return new long[] {operations, now - start, allocated};
+  }
+
+  /** Returns the bytes allocated so far by the current thread, or -1 if the JVM cannot tell. */
+  private static long allocatedBytes() {
+    if (!(THREADS instanceof com.sun.management.ThreadMXBean)) return -1;
+    return ((com.sun.management.ThreadMXBean) THREADS)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Builds a message shaped like the result of {@code parseQuerySnapshot} for an initial snapshot,
+   * in which every document is also reported as added.
+   */
+  private static Map<String, Object> snapshotMessage(Random random, int width, int depth) {
+    List<String> paths = new ArrayList<>();
+    List<Map<String, Object>> documents = new ArrayList<>();
+    List<Map<String, Object>> documentChanges = new ArrayList<>();
+    for (int i = 0; i < DOCUMENT_COUNT; i++) {
+      String path = "collection/document" + i;
+      Map<String, Object> document = document(random, width, depth);
+      paths.add(path);
+      documents.add(document);
+      Map<String, Object> change = new HashMap<>();
+      change.put("type", "DocumentChangeType.added");
+      change.put("oldIndex", -1);
+      change.put("newIndex", i);
+      change.put("document", document);
+      change.put("path", path);
+      documentChanges.add(change);
+    }
+    Map<String, Object> message = new HashMap<>();
+    message.put("paths", paths);
+    message.put("documents", documents);
+    message.put("metadataFlags", new byte[DOCUMENT_COUNT]);
+    message.put("cursorTokens", new int[DOCUMENT_COUNT]);
+    message.put("documentChanges", documentChanges);
+    message.put("documentChangeMetadataFlags", new byte[DOCUMENT_COUNT]);
+    message.put("metadata", metadata());
+    message.put("handles", Arrays.asList(0));
+    return message;
+  }
+
+  /**
+   * Builds a document with {@code width} fields of mixed types. If {@code depth} is greater than
+   * one, one of the fields is a nested document of the same width and one level less deep.
+   */
+  private static Map<String, Object> document(Random random, int width, int depth) {
+    Map<String, Object> data = new HashMap<>();
+    for (int i = 0; i < width; i++) {
+      String key = "field" + i;
+      switch (i % 8) {
+        case 0:
+          data.put(key, "value " + random.nextInt(10000));
+          break;
+        case 1:
+          data.put(key, random.nextLong());
+          break;
+        case 2:
+          if (i == 2 && depth > 1) {
+            data.put(key, document(random, width, depth - 1));
+          } else {
+            data.put(key, Blob.fromBytes(bytes(random, 32)));
+          }
+          break;
+        case 3:
+          data.put(key, random.nextDouble());
+          break;
+        case 4:
+          data.put(key, timestamp(random));
+          break;
+        case 5:
+          data.put(key, geoPoint(random));
+          break;
+        case 6:
+          data.put(key, random.nextBoolean());
+          break;
+        default:
+          data.put(
+              key,
+              Arrays.<Object>asList(
+                  "tag" + random.nextInt(100),
+                  random.nextInt(),
+                  new Date(random.nextLong() >>> 20)));
+          break;
+      }
+    }
+    return data;
+  }
+
+  private static Map<String, Object> metadata() {
+    Map<String, Object> metadata = new HashMap<>();
+    metadata.put("hasPendingWrites", false);
+    metadata.put("isFromCache", false);
+    return metadata;
+  }
+
+  private static Timestamp timestamp(Random random) {
+    return new Timestamp(random.nextInt(2000000000), random.nextInt(1000000000));
+  }
+
+  private static GeoPoint geoPoint(Random random) {
+    return new GeoPoint(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+  }
+
+  private static byte[] bytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static List<Object> references(int count) {
+    FirebaseApp app = mock(FirebaseApp.class);
+    when(app.getName()).thenReturn("[DEFAULT]");
+    FirebaseFirestore firestore = mock(FirebaseFirestore.class);
+    when(firestore.getApp()).thenReturn(app);
+    List<Object> references = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      DocumentReference reference = mock(DocumentReference.class);
+      when(reference.getFirestore()).thenReturn(firestore);
+      when(reference.getPath()).thenReturn("collection/document" + i);
+      references.add(reference);
+    }
+    return references;
+  }
+}
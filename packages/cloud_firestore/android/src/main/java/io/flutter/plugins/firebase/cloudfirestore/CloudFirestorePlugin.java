@@ -5,8 +5,12 @@
 package io.flutter.plugins.firebase.cloudfirestore;
 
 import android.app.Activity;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -35,9 +39,12 @@ import com.google.firebase.firestore.MetadataChanges;
 import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
 import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.SnapshotMetadata;
 import com.google.firebase.firestore.Source;
 import com.google.firebase.firestore.Transaction;
 import com.google.firebase.firestore.WriteBatch;
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
@@ -49,42 +56,154 @@ import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 public class CloudFirestorePlugin implements MethodCallHandler {
 
   private static final String TAG = "CloudFirestorePlugin";
+  private static final String CHANNEL_NAME = "plugins.flutter.io/cloud_firestore";
+  private static final StandardMethodCodec METHOD_CODEC =
+      new StandardMethodCodec(FirestoreMessageCodec.INSTANCE);
+  private static final int QUERY_CACHE_SIZE = 100;
+  private static final int CURSOR_CACHE_SIZE = 500;
+  private static final int HAS_PENDING_WRITES_FLAG = 1;
+  private static final int IS_FROM_CACHE_FLAG = 2;
+  private static final String CURSOR_EXPIRED_ERROR = "cursor-expired";
+  private static final String CURSOR_FIELD_MISSING_ERROR = "cursor-field-missing";
+  private static final long STREAM_LISTEN_TIMEOUT_MILLIS = 30000;
+  private static final long DEFAULT_METRICS_INTERVAL_MILLIS = 10000;
   private final MethodChannel channel;
+  private final BinaryMessenger messenger;
   private final Activity activity;
+  private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+  private Handler backgroundHandler;
+  // Listener handles that run on the thread of backgroundHandler.
+  private int backgroundListenerCount = 0;
 
   // Handles are ints used as indexes into the sparse array of active observers
   private int nextListenerHandle = 0;
   private int nextBatchHandle = 0;
+  private int nextChunkStreamHandle = 0;
+  private int nextImportHandle = 0;
+  private int nextCacheThenServerHandle = 0;
   private final SparseArray<EventObserver> observers = new SparseArray<>();
+  private final Map<String, EventObserver> queryObservers = new HashMap<>();
+  private final LruCache<String, Query> queryCache = new LruCache<>(QUERY_CACHE_SIZE);
+  private final LruCache<String, CursorSnapshot> cursorSnapshots =
+      new LruCache<>(CURSOR_CACHE_SIZE);
+  // Guarded by cursorSnapshots.
+  private int nextCursorToken = 0;
   private final SparseArray<DocumentObserver> documentObservers = new SparseArray<>();
   private final SparseArray<ListenerRegistration> listenerRegistrations = new SparseArray<>();
   private final SparseArray<WriteBatch> batches = new SparseArray<>();
   private final SparseArray<Transaction> transactions = new SparseArray<>();
   private final SparseArray<TaskCompletionSource> completionTasks = new SparseArray<>();
+  private final PluginMetrics metrics = new PluginMetrics();
+  private final Map<String, WriteCoalescer> writeCoalescers = new HashMap<>();
+  private final TransactionExecutor transactionExecutor =
+      new TransactionExecutor(
+          TransactionExecutor.DEFAULT_POOL_SIZE, TransactionExecutor.DEFAULT_QUEUE_CAPACITY);
 
   public static void registerWith(PluginRegistry.Registrar registrar) {
     final MethodChannel channel =
-        new MethodChannel(
-            registrar.messenger(),
-            "plugins.flutter.io/cloud_firestore",
-            new StandardMethodCodec(FirestoreMessageCodec.INSTANCE));
-    channel.setMethodCallHandler(new CloudFirestorePlugin(channel, registrar.activity()));
+        new MethodChannel(registrar.messenger(), CHANNEL_NAME, METHOD_CODEC);
+    final CloudFirestorePlugin plugin =
+        new CloudFirestorePlugin(channel, registrar.messenger(), registrar.activity());
+    channel.setMethodCallHandler(plugin);
+    final EventChannel metricsChannel =
+        new EventChannel(registrar.messenger(), CHANNEL_NAME + "/metrics", METHOD_CODEC);
+    metricsChannel.setStreamHandler(plugin.new MetricsStreamHandler());
   }
 
-  private CloudFirestorePlugin(MethodChannel channel, Activity activity) {
+  private CloudFirestorePlugin(
+      MethodChannel channel, BinaryMessenger messenger, Activity activity) {
     this.channel = channel;
+    this.messenger = messenger;
     this.activity = activity;
   }
 
+  /**
+   * Sends a snapshot to Dart, recording its encoded size and the time since {@code startNanos}
+   * under {@code metric}.
+   *
+   * <p>May be called from the background snapshot thread, in which case the snapshot is encoded
+   * there and only the send is posted to the main thread.
+   */
+  private void sendSnapshot(
+      String method, Map<String, Object> arguments, String metric, long startNanos) {
+    final ByteBuffer message = METHOD_CODEC.encodeMethodCall(new MethodCall(method, arguments));
+    int bytes = message.position();
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      messenger.send(CHANNEL_NAME, message);
+    } else {
+      mainThreadHandler.post(
+          new Runnable() {
+            @Override
+            public void run() {
+              messenger.send(CHANNEL_NAME, message);
+            }
+          });
+    }
+    Object paths = arguments.get("paths");
+    Object changes = arguments.get("documentChanges");
+    int documents =
+        paths instanceof List
+            ? ((List<?>) paths).size()
+            : changes instanceof List ? ((List<?>) changes).size() : 1;
+    metrics.recordEmission(metric, startNanos, bytes, documents);
+  }
+
+  /**
+   * Returns the handler of the thread that a new snapshot listener runs on: a shared background
+   * thread if the listener asked for background serialization, and the main thread otherwise.
+   *
+   * <p>The background thread is started for the first such listener, and stopped by {@link
+   * #releaseListenerHandler} once the last one is removed.
+   */
+  private Handler getListenerHandler(Map<String, Object> arguments) {
+    if (!Boolean.TRUE.equals(arguments.get("backgroundSerialization"))) return mainThreadHandler;
+    if (backgroundHandler == null) {
+      HandlerThread thread = new HandlerThread("FirestoreSnapshots");
+      thread.start();
+      backgroundHandler = new Handler(thread.getLooper());
+    }
+    backgroundListenerCount++;
+    return backgroundHandler;
+  }
+
+  /**
+   * Called when a listener handle that ran on {@code handler} is removed. Stops the background
+   * thread after the work already posted to it, such as the cleanup of that listener, has run.
+   */
+  private void releaseListenerHandler(Handler handler) {
+    if (handler != backgroundHandler || --backgroundListenerCount > 0) return;
+    backgroundHandler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            Looper.myLooper().quit();
+          }
+        });
+    backgroundHandler = null;
+  }
+
+  private static Executor asExecutor(final Handler handler) {
+    return new Executor() {
+      @Override
+      public void execute(@NonNull Runnable command) {
+        handler.post(command);
+      }
+    };
+  }
+
   private FirebaseFirestore getFirestore(Map<String, Object> arguments) {
     String appName = (String) arguments.get("app");
     return FirebaseFirestore.getInstance(FirebaseApp.getInstance(appName));
@@ -122,6 +241,11 @@ public class CloudFirestorePlugin implements MethodCallHandler {
     }
   }
 
+  private long getThrottleMillis(Map<String, Object> arguments) {
+    Number throttleMillis = (Number) arguments.get("throttleMillis");
+    return throttleMillis == null ? 0 : throttleMillis.longValue();
+  }
+
   private Object[] getDocumentValues(
       Map<String, Object> document, List<List<Object>> orderBy, Map<String, Object> arguments) {
     String documentId = (String) document.get("id");
@@ -130,45 +254,164 @@ public class CloudFirestorePlugin implements MethodCallHandler {
     if (orderBy != null) {
       for (List<Object> order : orderBy) {
         String orderByFieldName = (String) order.get(0);
-        if (orderByFieldName.contains(".")) {
-          String[] fieldNameParts = orderByFieldName.split("\\.");
-          Map<String, Object> current = (Map<String, Object>) documentData.get(fieldNameParts[0]);
-          for (int i = 1; i < fieldNameParts.length - 1; i++) {
-            current = (Map<String, Object>) current.get(fieldNameParts[i]);
+        // A document without an orderBy field cannot be in the results of the query, so a
+        // missing field means it was left out by a field mask.
+        Object value = documentData;
+        for (String part : orderByFieldName.split("\\.")) {
+          if (!(value instanceof Map) || !((Map<String, Object>) value).containsKey(part)) {
+            throw new CursorFieldMissingException((String) document.get("path"), orderByFieldName);
           }
-          data.add(current.get(fieldNameParts[fieldNameParts.length - 1]));
-        } else {
-          data.add(documentData.get(orderByFieldName));
+          value = ((Map<String, Object>) value).get(part);
         }
+        data.add(value);
       }
     }
     data.add((boolean) arguments.get("isCollectionGroup") ? document.get("path") : documentId);
     return data.toArray();
   }
 
-  private Map<String, Object> parseQuerySnapshot(QuerySnapshot querySnapshot) {
-    if (querySnapshot == null) return new HashMap<>();
-    Map<String, Object> data = new HashMap<>();
-    List<String> paths = new ArrayList<>();
-    List<Map<String, Object>> documents = new ArrayList<>();
-    List<Map<String, Object>> metadatas = new ArrayList<>();
-    for (DocumentSnapshot document : querySnapshot.getDocuments()) {
+  private Map<String, Object> parseDocumentSnapshot(
+      DocumentSnapshot documentSnapshot, FieldMask mask) {
+    Map<String, Object> snapshotMap = new HashMap<>();
+    Map<String, Object> metadata = new HashMap<>();
+    metadata.put("hasPendingWrites", documentSnapshot.getMetadata().hasPendingWrites());
+    metadata.put("isFromCache", documentSnapshot.getMetadata().isFromCache());
+    snapshotMap.put("metadata", metadata);
+    snapshotMap.put("path", documentSnapshot.getReference().getPath());
+    if (documentSnapshot.exists()) {
+      snapshotMap.put("data", FieldMask.getData(documentSnapshot, mask));
+    } else {
+      snapshotMap.put("data", null);
+    }
+    return snapshotMap;
+  }
+
+  /**
+   * Puts the paths, data and metadata flags of {@code documentSnapshots} into {@code data}.
+   *
+   * <p>If {@code firstIsCursor} or {@code lastIsCursor} is set, the first or last document is also
+   * cached for use as a query cursor, and its token is sent in the "cursorTokens" array, where
+   * other documents have -1.
+   */
+  private void putDocuments(
+      Map<String, Object> data,
+      List<DocumentSnapshot> documentSnapshots,
+      FieldMask mask,
+      boolean firstIsCursor,
+      boolean lastIsCursor) {
+    int size = documentSnapshots.size();
+    List<String> paths = new ArrayList<>(size);
+    List<Map<String, Object>> documents = new ArrayList<>(size);
+    byte[] metadataFlags = new byte[size];
+    for (int i = 0; i < size; i++) {
+      DocumentSnapshot document = documentSnapshots.get(i);
       paths.add(document.getReference().getPath());
-      documents.add(document.getData());
-      Map<String, Object> metadata = new HashMap<String, Object>();
-      metadata.put("hasPendingWrites", document.getMetadata().hasPendingWrites());
-      metadata.put("isFromCache", document.getMetadata().isFromCache());
-      metadatas.add(metadata);
+      documents.add(FieldMask.getData(document, mask));
+      metadataFlags[i] = getMetadataFlags(document.getMetadata());
     }
     data.put("paths", paths);
     data.put("documents", documents);
-    data.put("metadatas", metadatas);
+    data.put("metadataFlags", metadataFlags);
+    if (size > 0 && (firstIsCursor || lastIsCursor)) {
+      int[] cursorTokens = new int[size];
+      Arrays.fill(cursorTokens, -1);
+      if (firstIsCursor) {
+        cursorTokens[0] = putCursorSnapshot(paths.get(0), documentSnapshots.get(0));
+      }
+      if (lastIsCursor) {
+        cursorTokens[size - 1] =
+            putCursorSnapshot(paths.get(size - 1), documentSnapshots.get(size - 1));
+      }
+      data.put("cursorTokens", cursorTokens);
+    }
+  }
+
+  /**
+   * Returns whether the results of the query described by {@code arguments} get cursor tokens.
+   *
+   * <p>Only results of queries with a limit are pages whose first or last document is likely to
+   * be used as a cursor. Other documents can still be used as cursors, and are then resolved from
+   * their data.
+   */
+  private static boolean hasCursorTokens(Map<String, Object> arguments) {
+    @SuppressWarnings("unchecked")
+    Map<String, Object> parameters = (Map<String, Object>) arguments.get("parameters");
+    return parameters != null && parameters.get("limit") != null;
+  }
+
+  /**
+   * Packs the metadata of a document into the flags sent for it in the "metadataFlags" and
+   * "documentChangeMetadataFlags" byte arrays, which are aligned with the documents and the
+   * document changes of a snapshot.
+   */
+  private static byte getMetadataFlags(SnapshotMetadata metadata) {
+    int flags = 0;
+    if (metadata.hasPendingWrites()) flags |= HAS_PENDING_WRITES_FLAG;
+    if (metadata.isFromCache()) flags |= IS_FROM_CACHE_FLAG;
+    return (byte) flags;
+  }
 
-    List<Map<String, Object>> documentChanges = new ArrayList<>();
-    for (DocumentChange documentChange : querySnapshot.getDocumentChanges()) {
+  private Map<String, Object> parseQuerySnapshot(
+      QuerySnapshot querySnapshot, FieldMask mask, boolean cursorTokens) {
+    if (querySnapshot == null) return new HashMap<>();
+    return parseQuerySnapshot(
+        querySnapshot,
+        DocumentChangeBuffer.of(querySnapshot.getDocumentChanges()),
+        mask,
+        cursorTokens);
+  }
+
+  private Map<String, Object> parseQuerySnapshot(
+      QuerySnapshot querySnapshot,
+      List<DocumentChangeBuffer.Change> changes,
+      FieldMask mask,
+      boolean cursorTokens) {
+    Map<String, Object> data = new HashMap<>();
+    putDocuments(data, querySnapshot.getDocuments(), mask, cursorTokens, cursorTokens);
+
+    putDocumentChanges(data, changes, true, mask);
+
+    Map<String, Object> metadata = new HashMap<>();
+    metadata.put("hasPendingWrites", querySnapshot.getMetadata().hasPendingWrites());
+    metadata.put("isFromCache", querySnapshot.getMetadata().isFromCache());
+    data.put("metadata", metadata);
+
+    return data;
+  }
+
+  /**
+   * Builds a map containing only the document changes and the snapshot metadata.
+   *
+   * <p>Used by listeners that requested delta delivery once the initial snapshot has been sent.
+   * The Dart side keeps the materialized result set and applies the changes to it, so the data of
+   * removed documents is not sent again.
+   */
+  private Map<String, Object> parseQuerySnapshotDelta(
+      QuerySnapshot querySnapshot, List<DocumentChangeBuffer.Change> changes, FieldMask mask) {
+    Map<String, Object> data = new HashMap<>();
+    data.put("isDelta", true);
+    putDocumentChanges(data, changes, false, mask);
+
+    Map<String, Object> metadata = new HashMap<>();
+    metadata.put("hasPendingWrites", querySnapshot.getMetadata().hasPendingWrites());
+    metadata.put("isFromCache", querySnapshot.getMetadata().isFromCache());
+    data.put("metadata", metadata);
+
+    return data;
+  }
+
+  private void putDocumentChanges(
+      Map<String, Object> data,
+      List<DocumentChangeBuffer.Change> changes,
+      boolean includeRemovedDocuments,
+      FieldMask mask) {
+    List<Map<String, Object>> documentChanges = new ArrayList<>(changes.size());
+    byte[] metadataFlags = new byte[changes.size()];
+    for (int i = 0; i < changes.size(); i++) {
+      DocumentChangeBuffer.Change documentChange = changes.get(i);
       Map<String, Object> change = new HashMap<>();
       String type = null;
-      switch (documentChange.getType()) {
+      switch (documentChange.type) {
         case ADDED:
           type = "DocumentChangeType.added";
           break;
@@ -180,32 +423,109 @@ public class CloudFirestorePlugin implements MethodCallHandler {
           break;
       }
       change.put("type", type);
-      change.put("oldIndex", documentChange.getOldIndex());
-      change.put("newIndex", documentChange.getNewIndex());
-      change.put("document", documentChange.getDocument().getData());
-      change.put("path", documentChange.getDocument().getReference().getPath());
-      Map<String, Object> metadata = new HashMap();
-      metadata.put(
-          "hasPendingWrites", documentChange.getDocument().getMetadata().hasPendingWrites());
-      metadata.put("isFromCache", documentChange.getDocument().getMetadata().isFromCache());
-      change.put("metadata", metadata);
+      change.put("oldIndex", documentChange.oldIndex);
+      change.put("newIndex", documentChange.newIndex);
+      if (includeRemovedDocuments || documentChange.type != DocumentChange.Type.REMOVED) {
+        change.put("document", FieldMask.getData(documentChange.document, mask));
+      }
+      change.put("path", documentChange.getPath());
+      metadataFlags[i] = getMetadataFlags(documentChange.document.getMetadata());
       documentChanges.add(change);
     }
     data.put("documentChanges", documentChanges);
-
-    Map<String, Object> metadata = new HashMap<>();
-    metadata.put("hasPendingWrites", querySnapshot.getMetadata().hasPendingWrites());
-    metadata.put("isFromCache", querySnapshot.getMetadata().isFromCache());
-    data.put("metadata", metadata);
-
-    return data;
+    data.put("documentChangeMetadataFlags", metadataFlags);
   }
 
   private Transaction getTransaction(Map<String, Object> arguments) {
     return transactions.get((Integer) arguments.get("transactionId"));
   }
 
+  /**
+   * Returns the query described by {@code arguments}, reusing a previously built instance when the
+   * same query was requested before.
+   */
   private Query getQuery(Map<String, Object> arguments) {
+    String key = QueryKey.of(arguments, "app", "path", "isCollectionGroup", "parameters");
+    Query query = queryCache.get(key);
+    if (query == null) {
+      query = buildQuery(arguments);
+      queryCache.put(key, query);
+    }
+    return query;
+  }
+
+  /**
+   * Caches a snapshot sent to Dart for use as a query cursor and returns its cursor token. The
+   * token of a document only changes when a different snapshot of it is sent.
+   */
+  private int putCursorSnapshot(String path, DocumentSnapshot snapshot) {
+    synchronized (cursorSnapshots) {
+      CursorSnapshot cached = cursorSnapshots.get(path);
+      if (cached != null && cached.snapshot.equals(snapshot)) return cached.token;
+      int token = nextCursorToken++;
+      cursorSnapshots.put(path, new CursorSnapshot(token, snapshot));
+      return token;
+    }
+  }
+
+  /**
+   * Returns the snapshot last sent to Dart for the cursor document, so that the SDK can read the
+   * cursor values from it directly.
+   *
+   * <p>A cursor that carries a token matches the cached snapshot with the same token. A cursor
+   * that carries data instead matches a cached snapshot with the same data, and otherwise falls
+   * back to the values in its data. A cursor that carries only a token that is no longer cached
+   * cannot be resolved, and fails the call with {@link #CURSOR_EXPIRED_ERROR} so that Dart resends
+   * it with its data.
+   */
+  private DocumentSnapshot getCursorSnapshot(Map<String, Object> document) {
+    String path = (String) document.get("path");
+    CursorSnapshot cached = cursorSnapshots.get(path);
+    Number token = (Number) document.get("cursorToken");
+    if (cached != null && token != null && cached.token == token.intValue()) {
+      return cached.snapshot;
+    }
+    if (!document.containsKey("data")) throw new CursorExpiredException(path);
+    if (cached == null || !valuesEqual(cached.snapshot.getData(), document.get("data"))) {
+      return null;
+    }
+    return cached.snapshot;
+  }
+
+  /** Compares values decoded from Dart with values read from the SDK, ignoring number widths. */
+  static boolean valuesEqual(Object a, Object b) {
+    if (a == b) return true;
+    if (a == null || b == null) return false;
+    if (a instanceof Number && b instanceof Number) {
+      boolean floatingPoint = a instanceof Double || a instanceof Float;
+      if (floatingPoint != (b instanceof Double || b instanceof Float)) return false;
+      return floatingPoint
+          ? ((Number) a).doubleValue() == ((Number) b).doubleValue()
+          : ((Number) a).longValue() == ((Number) b).longValue();
+    }
+    if (a instanceof Map && b instanceof Map) {
+      Map<?, ?> mapA = (Map<?, ?>) a;
+      Map<?, ?> mapB = (Map<?, ?>) b;
+      if (mapA.size() != mapB.size()) return false;
+      for (Map.Entry<?, ?> entry : mapA.entrySet()) {
+        if (!mapB.containsKey(entry.getKey())) return false;
+        if (!valuesEqual(entry.getValue(), mapB.get(entry.getKey()))) return false;
+      }
+      return true;
+    }
+    if (a instanceof List && b instanceof List) {
+      List<?> listA = (List<?>) a;
+      List<?> listB = (List<?>) b;
+      if (listA.size() != listB.size()) return false;
+      for (int i = 0; i < listA.size(); i++) {
+        if (!valuesEqual(listA.get(i), listB.get(i))) return false;
+      }
+      return true;
+    }
+    return a.equals(b);
+  }
+
+  private Query buildQuery(Map<String, Object> arguments) {
     Query query = getReference(arguments);
     @SuppressWarnings("unchecked")
     Map<String, Object> parameters = (Map<String, Object>) arguments.get("parameters");
@@ -265,10 +585,18 @@ public class CloudFirestorePlugin implements MethodCallHandler {
       query = query.orderBy(FieldPath.documentId(), direction);
     }
     if (startAtDocument != null) {
-      query = query.startAt(getDocumentValues(startAtDocument, orderBy, arguments));
+      DocumentSnapshot snapshot = getCursorSnapshot(startAtDocument);
+      query =
+          snapshot != null
+              ? query.startAt(snapshot)
+              : query.startAt(getDocumentValues(startAtDocument, orderBy, arguments));
     }
     if (startAfterDocument != null) {
-      query = query.startAfter(getDocumentValues(startAfterDocument, orderBy, arguments));
+      DocumentSnapshot snapshot = getCursorSnapshot(startAfterDocument);
+      query =
+          snapshot != null
+              ? query.startAfter(snapshot)
+              : query.startAfter(getDocumentValues(startAfterDocument, orderBy, arguments));
     }
     @SuppressWarnings("unchecked")
     List<Object> startAt = (List<Object>) parameters.get("startAt");
@@ -277,10 +605,18 @@ public class CloudFirestorePlugin implements MethodCallHandler {
     List<Object> startAfter = (List<Object>) parameters.get("startAfter");
     if (startAfter != null) query = query.startAfter(startAfter.toArray());
     if (endAtDocument != null) {
-      query = query.endAt(getDocumentValues(endAtDocument, orderBy, arguments));
+      DocumentSnapshot snapshot = getCursorSnapshot(endAtDocument);
+      query =
+          snapshot != null
+              ? query.endAt(snapshot)
+              : query.endAt(getDocumentValues(endAtDocument, orderBy, arguments));
     }
     if (endBeforeDocument != null) {
-      query = query.endBefore(getDocumentValues(endBeforeDocument, orderBy, arguments));
+      DocumentSnapshot snapshot = getCursorSnapshot(endBeforeDocument);
+      query =
+          snapshot != null
+              ? query.endBefore(snapshot)
+              : query.endBefore(getDocumentValues(endBeforeDocument, orderBy, arguments));
     }
     @SuppressWarnings("unchecked")
     List<Object> endAt = (List<Object>) parameters.get("endAt");
@@ -291,11 +627,58 @@ public class CloudFirestorePlugin implements MethodCallHandler {
     return query;
   }
 
+  /** A snapshot sent to Dart, with the token Dart uses to refer to it as a query cursor. */
+  private static class CursorSnapshot {
+    final int token;
+    final DocumentSnapshot snapshot;
+
+    CursorSnapshot(int token, DocumentSnapshot snapshot) {
+      this.token = token;
+      this.snapshot = snapshot;
+    }
+  }
+
+  /** Thrown when a query cursor refers to a snapshot that is no longer cached. */
+  private static class CursorExpiredException extends RuntimeException {
+    CursorExpiredException(String path) {
+      super("No cached snapshot for cursor document " + path);
+    }
+  }
+
+  /**
+   * Thrown when a query cursor is built from the data of a document that lacks an orderBy field,
+   * because a field mask left it out.
+   */
+  private static class CursorFieldMissingException extends RuntimeException {
+    CursorFieldMissingException(String path, String field) {
+      super("Cursor document " + path + " does not contain the orderBy field " + field);
+    }
+  }
+
+  /**
+   * Sends document snapshots to Dart. All of its state is confined to the thread of {@code
+   * handler}, which is also the thread the SDK delivers snapshots on.
+   */
   private class DocumentObserver implements EventListener<DocumentSnapshot> {
     private int handle;
+    private final Handler handler;
+    private final FieldMask mask;
+    private final long throttleMillis;
+    private DocumentSnapshot pendingSnapshot;
+    private long lastEmitTime;
+    private final Runnable emitPending =
+        new Runnable() {
+          @Override
+          public void run() {
+            emit();
+          }
+        };
 
-    DocumentObserver(int handle) {
+    DocumentObserver(int handle, Handler handler, long throttleMillis, FieldMask mask) {
       this.handle = handle;
+      this.handler = handler;
+      this.mask = mask;
+      this.throttleMillis = throttleMillis;
     }
 
     @Override
@@ -305,6 +688,22 @@ public class CloudFirestorePlugin implements MethodCallHandler {
         System.out.println(e);
         return;
       }
+      boolean emitScheduled = pendingSnapshot != null;
+      pendingSnapshot = documentSnapshot;
+      if (emitScheduled) return;
+      long delay = lastEmitTime + throttleMillis - SystemClock.uptimeMillis();
+      if (delay <= 0) {
+        emit();
+      } else {
+        handler.postDelayed(emitPending, delay);
+      }
+    }
+
+    private void emit() {
+      long startNanos = System.nanoTime();
+      DocumentSnapshot documentSnapshot = pendingSnapshot;
+      pendingSnapshot = null;
+      lastEmitTime = SystemClock.uptimeMillis();
       Map<String, Object> arguments = new HashMap<>();
       Map<String, Object> metadata = new HashMap<>();
       arguments.put("handle", handle);
@@ -312,21 +711,88 @@ public class CloudFirestorePlugin implements MethodCallHandler {
       metadata.put("isFromCache", documentSnapshot.getMetadata().isFromCache());
       arguments.put("metadata", metadata);
       if (documentSnapshot.exists()) {
-        arguments.put("data", documentSnapshot.getData());
+        arguments.put("data", FieldMask.getData(documentSnapshot, mask));
         arguments.put("path", documentSnapshot.getReference().getPath());
       } else {
         arguments.put("data", null);
         arguments.put("path", documentSnapshot.getReference().getPath());
       }
-      channel.invokeMethod("DocumentSnapshot", arguments);
+      sendSnapshot("DocumentSnapshot", arguments, "DocumentSnapshot", startNanos);
+    }
+
+    /**
+     * Drops a throttled snapshot that has not been sent yet. On the thread of {@code handler} this
+     * happens right away, so nothing is sent after the listener has been removed.
+     */
+    void cancel() {
+      Runnable dropPending =
+          new Runnable() {
+            @Override
+            public void run() {
+              handler.removeCallbacks(emitPending);
+              pendingSnapshot = null;
+            }
+          };
+      if (Looper.myLooper() == handler.getLooper()) {
+        dropPending.run();
+      } else {
+        handler.post(dropPending);
+      }
     }
   }
 
+  /**
+   * Sends query snapshots to Dart, at most once every {@code throttleMillis} milliseconds.
+   *
+   * <p>Snapshots that arrive within the interval are not sent on their own: the latest one is sent
+   * when the interval ends, together with the changes of all the snapshots it replaces.
+   *
+   * <p>Apart from the registration and the listener count, which belong to the main thread, all of
+   * its state is confined to the thread of {@code handler}, which is also the thread the SDK
+   * delivers snapshots on.
+   */
   private class EventObserver implements EventListener<QuerySnapshot> {
-    private int handle;
+    private final String key;
+    private final Handler handler;
+    private int listenerCount;
+    private final String metric;
+    private final FieldMask mask;
+    private final boolean cursorTokens;
+    private final List<Integer> handles = new ArrayList<>();
+    private ListenerRegistration registration;
+    private final boolean deltaOnly;
+    private final MetadataChanges metadataChanges;
+    private final long throttleMillis;
+    private final DocumentChangeBuffer pendingChanges = new DocumentChangeBuffer();
+    private boolean initialSnapshotSent = false;
+    private QuerySnapshot lastSentSnapshot;
+    private QuerySnapshot pendingSnapshot;
+    private long lastEmitTime;
+    private final Runnable emitPending =
+        new Runnable() {
+          @Override
+          public void run() {
+            emit();
+          }
+        };
 
-    EventObserver(int handle) {
-      this.handle = handle;
+    EventObserver(
+        String key,
+        String path,
+        boolean deltaOnly,
+        MetadataChanges metadataChanges,
+        long throttleMillis,
+        FieldMask mask,
+        boolean cursorTokens,
+        Handler handler) {
+      this.key = key;
+      this.handler = handler;
+      this.mask = mask;
+      this.cursorTokens = cursorTokens;
+      this.metric = "QuerySnapshot " + path;
+      this.deltaOnly = deltaOnly;
+      this.metadataChanges = metadataChanges;
+      this.throttleMillis = throttleMillis;
     }
 
     @Override
@@ -337,10 +803,323 @@ public class CloudFirestorePlugin implements MethodCallHandler {
         return;
       }
 
-      Map<String, Object> arguments = parseQuerySnapshot(querySnapshot);
-      arguments.put("handle", handle);
+      pendingChanges.add(
+          deltaOnly
+              ? querySnapshot.getDocumentChanges(metadataChanges)
+              : querySnapshot.getDocumentChanges());
+      boolean emitScheduled = pendingSnapshot != null;
+      pendingSnapshot = querySnapshot;
+      if (emitScheduled) return;
+      long delay = lastEmitTime + throttleMillis - SystemClock.uptimeMillis();
+      if (!initialSnapshotSent || delay <= 0) {
+        emit();
+      } else {
+        handler.postDelayed(emitPending, delay);
+      }
+    }
+
+    private void emit() {
+      long startNanos = System.nanoTime();
+      QuerySnapshot querySnapshot = pendingSnapshot;
+      pendingSnapshot = null;
+      lastSentSnapshot = querySnapshot;
+      lastEmitTime = SystemClock.uptimeMillis();
+      Map<String, Object> arguments;
+      if (deltaOnly && initialSnapshotSent) {
+        arguments = parseQuerySnapshotDelta(querySnapshot, pendingChanges.drain(), mask);
+      } else {
+        arguments =
+            parseQuerySnapshot(querySnapshot, pendingChanges.drain(), mask, cursorTokens);
+        initialSnapshotSent = true;
+      }
+      // The snapshot is converted and encoded once for all the Dart listeners of this query.
+      arguments.put("handles", new ArrayList<>(handles));
 
-      channel.invokeMethod("QuerySnapshot", arguments);
+      sendSnapshot("QuerySnapshot", arguments, metric, startNanos);
+    }
+
+    /**
+     * Adds a Dart listener to this registration. If a snapshot has already been sent to the other
+     * listeners, the new one receives it in full, as if it had just registered with the SDK.
+     */
+    void addHandle(final int handle) {
+      listenerCount++;
+      handler.post(
+          new Runnable() {
+            @Override
+            public void run() {
+              handles.add(handle);
+              if (lastSentSnapshot == null) return;
+              QuerySnapshot querySnapshot = lastSentSnapshot;
+              long startNanos = System.nanoTime();
+              List<DocumentSnapshot> documents = querySnapshot.getDocuments();
+              List<DocumentChangeBuffer.Change> changes = new ArrayList<>(documents.size());
+              for (int i = 0; i < documents.size(); i++) {
+                changes.add(
+                    new DocumentChangeBuffer.Change(
+                        DocumentChange.Type.ADDED, -1, i, documents.get(i)));
+              }
+              Map<String, Object> arguments =
+                  parseQuerySnapshot(querySnapshot, changes, mask, cursorTokens);
+              arguments.put("handles", Collections.singletonList(handle));
+              sendSnapshot("QuerySnapshot", arguments, metric, startNanos);
+            }
+          });
+    }
+
+    /** Removes a Dart listener, releasing the SDK registration once no listener is left. */
+    void removeHandle(final int handle) {
+      listenerCount--;
+      if (listenerCount == 0) {
+        registration.remove();
+        queryObservers.remove(key);
+      }
+      handler.post(
+          new Runnable() {
+            @Override
+            public void run() {
+              handles.remove(Integer.valueOf(handle));
+              if (!handles.isEmpty()) return;
+              handler.removeCallbacks(emitPending);
+              pendingSnapshot = null;
+            }
+          });
+    }
+  }
+
+  /**
+   * Sends the documents of a query result over a dedicated event channel, {@code chunkSize}
+   * documents per event, followed by the end of the stream.
+   *
+   * <p>Only one chunk is converted to platform types at a time, and the main thread is released
+   * between chunks so the first documents reach Dart before the rest are encoded.
+   */
+  private class DocumentChunkStreamHandler implements EventChannel.StreamHandler {
+    private final EventChannel eventChannel;
+    private final Query query;
+    private final Source source;
+    private final int chunkSize;
+    private final FieldMask mask;
+    private final boolean cursorTokens;
+    private boolean cancelled = false;
+
+    DocumentChunkStreamHandler(
+        EventChannel eventChannel,
+        Query query,
+        Source source,
+        int chunkSize,
+        FieldMask mask,
+        boolean cursorTokens) {
+      this.eventChannel = eventChannel;
+      this.mask = mask;
+      this.cursorTokens = cursorTokens;
+      this.query = query;
+      this.source = source;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void onListen(Object arguments, final EventChannel.EventSink events) {
+      query
+          .get(source)
+          .addOnSuccessListener(
+              new OnSuccessListener<QuerySnapshot>() {
+                @Override
+                public void onSuccess(QuerySnapshot querySnapshot) {
+                  sendChunk(querySnapshot, 0, events);
+                }
+              })
+          .addOnFailureListener(
+              new OnFailureListener() {
+                @Override
+                public void onFailure(@NonNull Exception e) {
+                  if (cancelled) return;
+                  events.error("Error performing getDocuments", e.getMessage(), null);
+                  events.endOfStream();
+                }
+              });
+    }
+
+    private void sendChunk(
+        final QuerySnapshot querySnapshot, int start, final EventChannel.EventSink events) {
+      if (cancelled) return;
+      List<DocumentSnapshot> documents = querySnapshot.getDocuments();
+      final int end = Math.min(start + chunkSize, documents.size());
+      Map<String, Object> chunk = new HashMap<>();
+      putDocuments(
+          chunk,
+          documents.subList(start, end),
+          mask,
+          cursorTokens && start == 0,
+          cursorTokens && end == documents.size());
+      Map<String, Object> metadata = new HashMap<>();
+      metadata.put("hasPendingWrites", querySnapshot.getMetadata().hasPendingWrites());
+      metadata.put("isFromCache", querySnapshot.getMetadata().isFromCache());
+      chunk.put("metadata", metadata);
+      events.success(chunk);
+      if (end < documents.size()) {
+        mainThreadHandler.post(
+            new Runnable() {
+              @Override
+              public void run() {
+                sendChunk(querySnapshot, end, events);
+              }
+            });
+      } else {
+        events.endOfStream();
+      }
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+      cancelled = true;
+      eventChannel.setStreamHandler(null);
+    }
+  }
+
+  /**
+   * Reads from the cache and from the server at the same time, and sends the cached result followed
+   * by the server result. The server result is not sent if its data is the same as that of the
+   * cached result, and the cached result is not sent if it arrives after the server result, cannot
+   * be read, or is {@link #isEmpty empty}. The stream ends after the server result, or with its
+   * error.
+   */
+  private abstract class CacheThenServerStreamHandler<T> implements EventChannel.StreamHandler {
+    private final EventChannel eventChannel;
+    private final String description;
+    private EventChannel.EventSink events;
+    private T cachedResult;
+    private boolean serverDone = false;
+    private boolean cancelled = false;
+
+    CacheThenServerStreamHandler(EventChannel eventChannel, String description) {
+      this.eventChannel = eventChannel;
+      this.description = description;
+    }
+
+    abstract Task<T> get(Source source);
+
+    abstract Map<String, Object> parse(T result);
+
+    abstract boolean sameData(T cached, T server);
+
+    /**
+     * Returns whether a cached result holds nothing worth showing before the server answers, as
+     * when a query reads from a cold cache.
+     */
+    boolean isEmpty(T cached) {
+      return false;
+    }
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+      this.events = events;
+      get(Source.CACHE)
+          .addOnSuccessListener(
+              new OnSuccessListener<T>() {
+                @Override
+                public void onSuccess(T result) {
+                  if (cancelled || serverDone || isEmpty(result)) return;
+                  cachedResult = result;
+                  CacheThenServerStreamHandler.this.events.success(parse(result));
+                }
+              });
+      get(Source.SERVER)
+          .addOnCompleteListener(
+              new OnCompleteListener<T>() {
+                @Override
+                public void onComplete(@NonNull Task<T> task) {
+                  if (cancelled) return;
+                  serverDone = true;
+                  EventChannel.EventSink events = CacheThenServerStreamHandler.this.events;
+                  if (!task.isSuccessful()) {
+                    Exception e = task.getException();
+                    events.error(
+                        "Error performing " + description, e == null ? null : e.getMessage(), null);
+                  } else if (cachedResult == null || !sameData(cachedResult, task.getResult())) {
+                    events.success(parse(task.getResult()));
+                  }
+                  events.endOfStream();
+                  eventChannel.setStreamHandler(null);
+                }
+              });
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+      cancelled = true;
+      eventChannel.setStreamHandler(null);
+    }
+  }
+
+  /**
+   * Registers {@code handler} on the channel of a stream whose handle is about to be returned to
+   * Dart. Dart listens as soon as it receives the handle; if it has not listened within {@link
+   * #STREAM_LISTEN_TIMEOUT_MILLIS}, as when the isolate went away first, the handler is
+   * unregistered so that it and the query or file it holds are not kept forever.
+   */
+  private void setPendingStreamHandler(
+      final EventChannel eventChannel, final EventChannel.StreamHandler handler) {
+    final Runnable expire =
+        new Runnable() {
+          @Override
+          public void run() {
+            eventChannel.setStreamHandler(null);
+          }
+        };
+    eventChannel.setStreamHandler(
+        new EventChannel.StreamHandler() {
+          @Override
+          public void onListen(Object arguments, EventChannel.EventSink events) {
+            mainThreadHandler.removeCallbacks(expire);
+            handler.onListen(arguments, events);
+          }
+
+          @Override
+          public void onCancel(Object arguments) {
+            handler.onCancel(arguments);
+          }
+        });
+    mainThreadHandler.postDelayed(expire, STREAM_LISTEN_TIMEOUT_MILLIS);
+  }
+
+  private static boolean sameDocumentData(DocumentSnapshot a, DocumentSnapshot b) {
+    if (!a.getReference().getPath().equals(b.getReference().getPath())) return false;
+    if (a.exists() != b.exists()) return false;
+    return !a.exists() || a.getData().equals(b.getData());
+  }
+
+  /**
+   * Runs {@code operation} on the transaction executor. If it is rejected, or throws an unchecked
+   * exception that it does not handle itself, {@code result} is completed with an error so that the
+   * Dart future does not wait forever.
+   */
+  private void executeInTransaction(
+      Map<String, Object> arguments,
+      final String description,
+      final Result result,
+      final Runnable operation) {
+    try {
+      transactionExecutor.execute(
+          (Integer) arguments.get("transactionId"),
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                operation.run();
+              } catch (final RuntimeException e) {
+                activity.runOnUiThread(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        result.error("Error performing " + description, e.getMessage(), null);
+                      }
+                    });
+              }
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      result.error("Error performing " + description, e.getMessage(), null);
     }
   }
 
@@ -361,8 +1140,87 @@ public class CloudFirestorePlugin implements MethodCallHandler {
         });
   }
 
+  private Map<String, Object> getQueryCacheMetrics() {
+    Map<String, Object> cacheMetrics = new HashMap<>();
+    cacheMetrics.put("size", queryCache.size());
+    cacheMetrics.put("maxSize", queryCache.maxSize());
+    cacheMetrics.put("hitCount", queryCache.hitCount());
+    cacheMetrics.put("missCount", queryCache.missCount());
+    cacheMetrics.put("evictionCount", queryCache.evictionCount());
+    return cacheMetrics;
+  }
+
+  private Map<String, Object> getPluginMetrics() {
+    Map<String, Object> pluginMetrics = metrics.toMap();
+    pluginMetrics.put("transactionExecutor", transactionExecutor.getMetrics());
+    pluginMetrics.put("queryCache", getQueryCacheMetrics());
+    return pluginMetrics;
+  }
+
+  /**
+   * Sends the plugin metrics to Dart every {@code intervalMillis} milliseconds while listened, or
+   * every {@link #DEFAULT_METRICS_INTERVAL_MILLIS} if no interval is given.
+   */
+  private class MetricsStreamHandler implements EventChannel.StreamHandler {
+    private Runnable sendMetrics;
+
+    @Override
+    public void onListen(Object arguments, final EventChannel.EventSink events) {
+      Object interval = null;
+      if (arguments instanceof Map) interval = ((Map<?, ?>) arguments).get("intervalMillis");
+      final long intervalMillis =
+          interval instanceof Number
+              ? ((Number) interval).longValue()
+              : DEFAULT_METRICS_INTERVAL_MILLIS;
+      mainThreadHandler.removeCallbacks(sendMetrics);
+      sendMetrics =
+          new Runnable() {
+            @Override
+            public void run() {
+              events.success(getPluginMetrics());
+              mainThreadHandler.postDelayed(this, intervalMillis);
+            }
+          };
+      mainThreadHandler.postDelayed(sendMetrics, intervalMillis);
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+      mainThreadHandler.removeCallbacks(sendMetrics);
+      sendMetrics = null;
+    }
+  }
+
   @Override
-  public void onMethodCall(MethodCall call, final Result result) {
+  public void onMethodCall(MethodCall call, Result rawResult) {
+    final Result result = metrics.track(call.method, rawResult);
+    if (!writeCoalescers.isEmpty()
+        && !call.method.equals("DocumentReference#setData")
+        && !call.method.equals("DocumentReference#updateData")) {
+      // Any other call may depend on the writes that are waiting to be batched, or write the same
+      // documents, so those writes are committed first to keep the order they were issued in.
+      // Only the app named by the call is affected; calls that name none flush every app.
+      Object arguments = call.arguments;
+      Object app = arguments instanceof Map ? ((Map<?, ?>) arguments).get("app") : null;
+      if (app != null) {
+        WriteCoalescer coalescer = writeCoalescers.get(app);
+        if (coalescer != null) coalescer.flush();
+      } else {
+        for (WriteCoalescer coalescer : writeCoalescers.values()) {
+          coalescer.flush();
+        }
+      }
+    }
+    try {
+      handleMethodCall(call, result);
+    } catch (CursorExpiredException e) {
+      result.error(CURSOR_EXPIRED_ERROR, e.getMessage(), null);
+    } catch (CursorFieldMissingException e) {
+      result.error(CURSOR_FIELD_MISSING_ERROR, e.getMessage(), null);
+    }
+  }
+
+  private void handleMethodCall(final MethodCall call, final Result result) {
     switch (call.method) {
       case "Firestore#runTransaction":
         {
@@ -436,6 +1294,7 @@ public class CloudFirestorePlugin implements MethodCallHandler {
                   new OnCompleteListener<Map<String, Object>>() {
                     @Override
                     public void onComplete(Task<Map<String, Object>> task) {
+                      transactionExecutor.finish((Integer) arguments.get("transactionId"));
                       if (task.isSuccessful()) {
                         result.success(task.getResult());
                       } else {
@@ -446,120 +1305,196 @@ public class CloudFirestorePlugin implements MethodCallHandler {
                   });
           break;
         }
+      case "Firestore#runTransactionOperations":
+        {
+          Map<String, Object> arguments = call.arguments();
+          @SuppressWarnings("unchecked")
+          List<Map<String, Object>> operations =
+              (List<Map<String, Object>>) arguments.get("operations");
+          FirebaseFirestore firestore = getFirestore(arguments);
+          firestore
+              .runTransaction(new DeclarativeTransaction(firestore, operations))
+              .addOnCompleteListener(
+                  new OnCompleteListener<Map<String, Object>>() {
+                    @Override
+                    public void onComplete(@NonNull Task<Map<String, Object>> task) {
+                      if (task.isSuccessful()) {
+                        result.success(task.getResult());
+                        return;
+                      }
+                      // The code lets Dart tell failed preconditions from other failures.
+                      Exception e = task.getException();
+                      String code =
+                          e instanceof FirebaseFirestoreException
+                              ? ((FirebaseFirestoreException) e).getCode().name()
+                              : FirebaseFirestoreException.Code.UNKNOWN.name();
+                      result.error(code, e == null ? null : e.getMessage(), null);
+                    }
+                  });
+          break;
+        }
       case "Transaction#get":
         {
           final Map<String, Object> arguments = call.arguments();
           final Transaction transaction = getTransaction(arguments);
-          new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... voids) {
-              try {
-                DocumentSnapshot documentSnapshot =
-                    transaction.get(getDocumentReference(arguments));
-                final Map<String, Object> snapshotMap = new HashMap<>();
-                snapshotMap.put("path", documentSnapshot.getReference().getPath());
-                if (documentSnapshot.exists()) {
-                  snapshotMap.put("data", documentSnapshot.getData());
-                } else {
-                  snapshotMap.put("data", null);
+          executeInTransaction(
+              arguments,
+              "Transaction#get",
+              result,
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    DocumentSnapshot documentSnapshot =
+                        transaction.get(getDocumentReference(arguments));
+                    final Map<String, Object> snapshotMap = new HashMap<>();
+                    snapshotMap.put("path", documentSnapshot.getReference().getPath());
+                    if (documentSnapshot.exists()) {
+                      snapshotMap.put("data", documentSnapshot.getData());
+                    } else {
+                      snapshotMap.put("data", null);
+                    }
+                    Map<String, Object> metadata = new HashMap();
+                    metadata.put(
+                        "hasPendingWrites", documentSnapshot.getMetadata().hasPendingWrites());
+                    metadata.put("isFromCache", documentSnapshot.getMetadata().isFromCache());
+                    snapshotMap.put("metadata", metadata);
+                    activity.runOnUiThread(
+                        new Runnable() {
+                          @Override
+                          public void run() {
+                            result.success(snapshotMap);
+                          }
+                        });
+                  } catch (final FirebaseFirestoreException e) {
+                    activity.runOnUiThread(
+                        new Runnable() {
+                          @Override
+                          public void run() {
+                            result.error("Error performing Transaction#get", e.getMessage(), null);
+                          }
+                        });
+                  }
                 }
-                Map<String, Object> metadata = new HashMap();
-                metadata.put("hasPendingWrites", documentSnapshot.getMetadata().hasPendingWrites());
-                metadata.put("isFromCache", documentSnapshot.getMetadata().isFromCache());
-                snapshotMap.put("metadata", metadata);
-                activity.runOnUiThread(
-                    new Runnable() {
-                      @Override
-                      public void run() {
-                        result.success(snapshotMap);
-                      }
-                    });
-              } catch (final FirebaseFirestoreException e) {
-                activity.runOnUiThread(
-                    new Runnable() {
-                      @Override
-                      public void run() {
-                        result.error("Error performing Transaction#get", e.getMessage(), null);
-                      }
-                    });
-              }
-              return null;
-            }
-          }.execute();
+              });
           break;
         }
       case "Transaction#update":
         {
           final Map<String, Object> arguments = call.arguments();
           final Transaction transaction = getTransaction(arguments);
-          new AsyncTask<Void, Void, Void>() {
-            @SuppressWarnings("unchecked")
-            @Override
-            protected Void doInBackground(Void... voids) {
-              Map<String, Object> data = (Map<String, Object>) arguments.get("data");
-              try {
-                transaction.update(getDocumentReference(arguments), data);
-                activity.runOnUiThread(
-                    new Runnable() {
-                      @Override
-                      public void run() {
-                        result.success(null);
-                      }
-                    });
-              } catch (final IllegalStateException e) {
-                activity.runOnUiThread(
-                    new Runnable() {
-                      @Override
-                      public void run() {
-                        result.error("Error performing Transaction#update", e.getMessage(), null);
-                      }
-                    });
-              }
-              return null;
-            }
-          }.execute();
+          executeInTransaction(
+              arguments,
+              "Transaction#update",
+              result,
+              new Runnable() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public void run() {
+                  Map<String, Object> data = (Map<String, Object>) arguments.get("data");
+                  try {
+                    transaction.update(getDocumentReference(arguments), data);
+                    activity.runOnUiThread(
+                        new Runnable() {
+                          @Override
+                          public void run() {
+                            result.success(null);
+                          }
+                        });
+                  } catch (final IllegalStateException e) {
+                    activity.runOnUiThread(
+                        new Runnable() {
+                          @Override
+                          public void run() {
+                            result.error(
+                                "Error performing Transaction#update", e.getMessage(), null);
+                          }
+                        });
+                  }
+                }
+              });
           break;
         }
       case "Transaction#set":
         {
           final Map<String, Object> arguments = call.arguments();
           final Transaction transaction = getTransaction(arguments);
-          new AsyncTask<Void, Void, Void>() {
-            @SuppressWarnings("unchecked")
-            @Override
-            protected Void doInBackground(Void... voids) {
-              Map<String, Object> data = (Map<String, Object>) arguments.get("data");
-              transaction.set(getDocumentReference(arguments), data);
-              activity.runOnUiThread(
-                  new Runnable() {
-                    @Override
-                    public void run() {
-                      result.success(null);
-                    }
-                  });
-              return null;
-            }
-          }.execute();
+          executeInTransaction(
+              arguments,
+              "Transaction#set",
+              result,
+              new Runnable() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public void run() {
+                  Map<String, Object> data = (Map<String, Object>) arguments.get("data");
+                  transaction.set(getDocumentReference(arguments), data);
+                  activity.runOnUiThread(
+                      new Runnable() {
+                        @Override
+                        public void run() {
+                          result.success(null);
+                        }
+                      });
+                }
+              });
           break;
         }
       case "Transaction#delete":
         {
           final Map<String, Object> arguments = call.arguments();
           final Transaction transaction = getTransaction(arguments);
-          new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... voids) {
-              transaction.delete(getDocumentReference(arguments));
-              activity.runOnUiThread(
-                  new Runnable() {
-                    @Override
-                    public void run() {
-                      result.success(null);
-                    }
-                  });
-              return null;
-            }
-          }.execute();
+          executeInTransaction(
+              arguments,
+              "Transaction#delete",
+              result,
+              new Runnable() {
+                @Override
+                public void run() {
+                  transaction.delete(getDocumentReference(arguments));
+                  activity.runOnUiThread(
+                      new Runnable() {
+                        @Override
+                        public void run() {
+                          result.success(null);
+                        }
+                      });
+                }
+              });
+          break;
+        }
+      case "Firestore#setTransactionPoolSize":
+        {
+          Map<String, Object> arguments = call.arguments();
+          int poolSize = (Integer) arguments.get("poolSize");
+          try {
+            transactionExecutor.setPoolSize(poolSize);
+          } catch (IllegalArgumentException e) {
+            result.error("Error performing setTransactionPoolSize", e.getMessage(), null);
+            break;
+          }
+          result.success(null);
+          break;
+        }
+      case "Firestore#getTransactionExecutorMetrics":
+        {
+          result.success(transactionExecutor.getMetrics());
+          break;
+        }
+      case "Firestore#getPluginMetrics":
+        {
+          result.success(getPluginMetrics());
+          break;
+        }
+      case "Firestore#resetPluginMetrics":
+        {
+          metrics.reset();
+          result.success(null);
+          break;
+        }
+      case "Firestore#getQueryCacheMetrics":
+        {
+          result.success(getQueryCacheMetrics());
           break;
         }
       case "WriteBatch#create":
@@ -623,14 +1558,48 @@ public class CloudFirestorePlugin implements MethodCallHandler {
         {
           Map<String, Object> arguments = call.arguments();
           int handle = nextListenerHandle++;
-          EventObserver observer = new EventObserver(handle);
+          // Listeners of identical queries with identical options share one SDK registration.
+          String key =
+              QueryKey.of(
+                  arguments,
+                  "app",
+                  "path",
+                  "isCollectionGroup",
+                  "parameters",
+                  "includeMetadataChanges",
+                  "deltaOnly",
+                  "throttleMillis",
+                  "fields",
+                  "backgroundSerialization");
+          EventObserver observer = queryObservers.get(key);
+          if (observer == null) {
+            // Built first, as an expired cursor fails the call.
+            Query query = getQuery(arguments);
+            MetadataChanges metadataChanges =
+                (Boolean) arguments.get("includeMetadataChanges")
+                    ? MetadataChanges.INCLUDE
+                    : MetadataChanges.EXCLUDE;
+            boolean deltaOnly = Boolean.TRUE.equals(arguments.get("deltaOnly"));
+            observer =
+                new EventObserver(
+                    key,
+                    (String) arguments.get("path"),
+                    deltaOnly,
+                    metadataChanges,
+                    getThrottleMillis(arguments),
+                    FieldMask.fromArguments(arguments),
+                    hasCursorTokens(arguments),
+                    getListenerHandler(arguments));
+            queryObservers.put(key, observer);
+            observer.addHandle(handle);
+            observer.registration =
+                query.addSnapshotListener(asExecutor(observer.handler), metadataChanges, observer);
+          } else {
+            // The handle shares the thread of the existing observer.
+            getListenerHandler(arguments);
+            observer.addHandle(handle);
+          }
           observers.put(handle, observer);
-          MetadataChanges metadataChanges =
-              (Boolean) arguments.get("includeMetadataChanges")
-                  ? MetadataChanges.INCLUDE
-                  : MetadataChanges.EXCLUDE;
-          listenerRegistrations.put(
-              handle, getQuery(arguments).addSnapshotListener(metadataChanges, observer));
           result.success(handle);
           break;
         }
@@ -638,7 +1607,13 @@ public class CloudFirestorePlugin implements MethodCallHandler {
         {
           Map<String, Object> arguments = call.arguments();
           int handle = nextListenerHandle++;
-          DocumentObserver observer = new DocumentObserver(handle);
+          Handler handler = getListenerHandler(arguments);
+          DocumentObserver observer =
+              new DocumentObserver(
+                  handle,
+                  handler,
+                  getThrottleMillis(arguments),
+                  FieldMask.fromArguments(arguments));
           documentObservers.put(handle, observer);
           MetadataChanges metadataChanges =
               (Boolean) arguments.get("includeMetadataChanges")
@@ -646,7 +1621,8 @@ public class CloudFirestorePlugin implements MethodCallHandler {
                   : MetadataChanges.EXCLUDE;
           listenerRegistrations.put(
               handle,
-              getDocumentReference(arguments).addSnapshotListener(metadataChanges, observer));
+              getDocumentReference(arguments)
+                  .addSnapshotListener(asExecutor(handler), metadataChanges, observer));
           result.success(handle);
           break;
         }
@@ -654,9 +1630,20 @@ public class CloudFirestorePlugin implements MethodCallHandler {
         {
           Map<String, Object> arguments = call.arguments();
           int handle = (Integer) arguments.get("handle");
-          listenerRegistrations.get(handle).remove();
-          listenerRegistrations.remove(handle);
-          observers.remove(handle);
+          EventObserver observer = observers.get(handle);
+          if (observer != null) {
+            observer.removeHandle(handle);
+            observers.remove(handle);
+            releaseListenerHandler(observer.handler);
+          }
+          DocumentObserver documentObserver = documentObservers.get(handle);
+          if (documentObserver != null) {
+            listenerRegistrations.get(handle).remove();
+            listenerRegistrations.remove(handle);
+            documentObserver.cancel();
+            documentObservers.remove(handle);
+            releaseListenerHandler(documentObserver.handler);
+          }
           result.success(null);
           break;
         }
@@ -665,12 +1652,14 @@ public class CloudFirestorePlugin implements MethodCallHandler {
           Map<String, Object> arguments = call.arguments();
           Query query = getQuery(arguments);
           Source source = getSource(arguments);
+          final FieldMask mask = FieldMask.fromArguments(arguments);
+          final boolean cursorTokens = hasCursorTokens(arguments);
           Task<QuerySnapshot> task = query.get(source);
           task.addOnSuccessListener(
                   new OnSuccessListener<QuerySnapshot>() {
                     @Override
                     public void onSuccess(QuerySnapshot querySnapshot) {
-                      result.success(parseQuerySnapshot(querySnapshot));
+                      result.success(parseQuerySnapshot(querySnapshot, mask, cursorTokens));
                     }
                   })
               .addOnFailureListener(
@@ -682,6 +1671,72 @@ public class CloudFirestorePlugin implements MethodCallHandler {
                   });
           break;
         }
+      case "Query#getDocumentsCacheThenServer":
+        {
+          Map<String, Object> arguments = call.arguments();
+          final Query query = getQuery(arguments);
+          final FieldMask mask = FieldMask.fromArguments(arguments);
+          final boolean cursorTokens = hasCursorTokens(arguments);
+          int handle = nextCacheThenServerHandle++;
+          EventChannel eventChannel =
+              new EventChannel(
+                  messenger, CHANNEL_NAME + "/cacheThenServer/" + handle, METHOD_CODEC);
+          setPendingStreamHandler(
+              eventChannel,
+              new CacheThenServerStreamHandler<QuerySnapshot>(eventChannel, "getDocuments") {
+                @Override
+                Task<QuerySnapshot> get(Source source) {
+                  return query.get(source);
+                }
+
+                @Override
+                Map<String, Object> parse(QuerySnapshot snapshot) {
+                  return parseQuerySnapshot(snapshot, mask, cursorTokens);
+                }
+
+                @Override
+                boolean isEmpty(QuerySnapshot cached) {
+                  return cached.isEmpty();
+                }
+
+                @Override
+                boolean sameData(QuerySnapshot cached, QuerySnapshot server) {
+                  List<DocumentSnapshot> cachedDocuments = cached.getDocuments();
+                  List<DocumentSnapshot> serverDocuments = server.getDocuments();
+                  if (cachedDocuments.size() != serverDocuments.size()) return false;
+                  for (int i = 0; i < cachedDocuments.size(); i++) {
+                    if (!sameDocumentData(cachedDocuments.get(i), serverDocuments.get(i))) {
+                      return false;
+                    }
+                  }
+                  return true;
+                }
+              });
+          result.success(handle);
+          break;
+        }
+      case "Query#getDocumentsInChunks":
+        {
+          Map<String, Object> arguments = call.arguments();
+          int handle = nextChunkStreamHandle++;
+          int chunkSize = (Integer) arguments.get("chunkSize");
+          EventChannel eventChannel =
+              new EventChannel(
+                  messenger,
+                  "plugins.flutter.io/cloud_firestore/documents/" + handle,
+                  new StandardMethodCodec(FirestoreMessageCodec.INSTANCE));
+          setPendingStreamHandler(
+              eventChannel,
+              new DocumentChunkStreamHandler(
+                  eventChannel,
+                  getQuery(arguments),
+                  getSource(arguments),
+                  chunkSize,
+                  FieldMask.fromArguments(arguments),
+                  hasCursorTokens(arguments)));
+          result.success(handle);
+          break;
+        }
       case "DocumentReference#setData":
         {
           Map<String, Object> arguments = call.arguments();
@@ -690,8 +1745,14 @@ public class CloudFirestorePlugin implements MethodCallHandler {
           Map<String, Object> options = (Map<String, Object>) arguments.get("options");
           @SuppressWarnings("unchecked")
           Map<String, Object> data = (Map<String, Object>) arguments.get("data");
+          boolean merge = options != null && (boolean) options.get("merge");
+          WriteCoalescer coalescer = writeCoalescers.get((String) arguments.get("app"));
+          if (coalescer != null) {
+            coalescer.set(documentReference, data, merge, result);
+            break;
+          }
           Task<Void> task;
-          if (options != null && (boolean) options.get("merge")) {
+          if (merge) {
             task = documentReference.set(data, SetOptions.merge());
           } else {
             task = documentReference.set(data);
@@ -705,6 +1766,11 @@ public class CloudFirestorePlugin implements MethodCallHandler {
           DocumentReference documentReference = getDocumentReference(arguments);
           @SuppressWarnings("unchecked")
           Map<String, Object> data = (Map<String, Object>) arguments.get("data");
+          WriteCoalescer coalescer = writeCoalescers.get((String) arguments.get("app"));
+          if (coalescer != null) {
+            coalescer.update(documentReference, data, result);
+            break;
+          }
           Task<Void> task = documentReference.update(data);
           addDefaultListeners("updateData", task, result);
           break;
@@ -714,24 +1780,13 @@ public class CloudFirestorePlugin implements MethodCallHandler {
           Map<String, Object> arguments = call.arguments();
           DocumentReference documentReference = getDocumentReference(arguments);
           Source source = getSource(arguments);
+          final FieldMask mask = FieldMask.fromArguments(arguments);
           Task<DocumentSnapshot> task = documentReference.get(source);
           task.addOnSuccessListener(
                   new OnSuccessListener<DocumentSnapshot>() {
                     @Override
                     public void onSuccess(DocumentSnapshot documentSnapshot) {
-                      Map<String, Object> snapshotMap = new HashMap<>();
-                      Map<String, Object> metadata = new HashMap<>();
-                      metadata.put(
-                          "hasPendingWrites", documentSnapshot.getMetadata().hasPendingWrites());
-                      metadata.put("isFromCache", documentSnapshot.getMetadata().isFromCache());
-                      snapshotMap.put("metadata", metadata);
-                      snapshotMap.put("path", documentSnapshot.getReference().getPath());
-                      if (documentSnapshot.exists()) {
-                        snapshotMap.put("data", documentSnapshot.getData());
-                      } else {
-                        snapshotMap.put("data", null);
-                      }
-                      result.success(snapshotMap);
+                      result.success(parseDocumentSnapshot(documentSnapshot, mask));
                     }
                   })
               .addOnFailureListener(
@@ -743,6 +1798,78 @@ public class CloudFirestorePlugin implements MethodCallHandler {
                   });
           break;
         }
+      case "DocumentReference#getCacheThenServer":
+        {
+          Map<String, Object> arguments = call.arguments();
+          final DocumentReference documentReference = getDocumentReference(arguments);
+          final FieldMask mask = FieldMask.fromArguments(arguments);
+          int handle = nextCacheThenServerHandle++;
+          EventChannel eventChannel =
+              new EventChannel(
+                  messenger, CHANNEL_NAME + "/cacheThenServer/" + handle, METHOD_CODEC);
+          setPendingStreamHandler(
+              eventChannel,
+              new CacheThenServerStreamHandler<DocumentSnapshot>(eventChannel, "get") {
+                @Override
+                Task<DocumentSnapshot> get(Source source) {
+                  return documentReference.get(source);
+                }
+
+                @Override
+                Map<String, Object> parse(DocumentSnapshot snapshot) {
+                  return parseDocumentSnapshot(snapshot, mask);
+                }
+
+                @Override
+                boolean sameData(DocumentSnapshot cached, DocumentSnapshot server) {
+                  return sameDocumentData(cached, server);
+                }
+              });
+          result.success(handle);
+          break;
+        }
+      case "Firestore#getAll":
+        {
+          Map<String, Object> arguments = call.arguments();
+          FirebaseFirestore firestore = getFirestore(arguments);
+          Source source = getSource(arguments);
+          final FieldMask mask = FieldMask.fromArguments(arguments);
+          @SuppressWarnings("unchecked")
+          final List<String> paths = (List<String>) arguments.get("paths");
+          final List<Task<DocumentSnapshot>> tasks = new ArrayList<>(paths.size());
+          for (String path : paths) {
+            tasks.add(firestore.document(path).get(source));
+          }
+          Tasks.whenAllComplete(tasks)
+              .addOnCompleteListener(
+                  new OnCompleteListener<List<Task<?>>>() {
+                    @Override
+                    public void onComplete(@NonNull Task<List<Task<?>>> ignored) {
+                      List<Map<String, Object>> snapshots = new ArrayList<>(tasks.size());
+                      for (int i = 0; i < tasks.size(); i++) {
+                        Task<DocumentSnapshot> task = tasks.get(i);
+                        if (task.isSuccessful()) {
+                          snapshots.add(parseDocumentSnapshot(task.getResult(), mask));
+                        } else {
+                          Map<String, Object> error = new HashMap<>();
+                          Exception exception = task.getException();
+                          error.put(
+                              "code",
+                              exception instanceof FirebaseFirestoreException
+                                  ? ((FirebaseFirestoreException) exception).getCode().name()
+                                  : "UNKNOWN");
+                          error.put("message", exception == null ? null : exception.getMessage());
+                          Map<String, Object> failure = new HashMap<>();
+                          failure.put("path", paths.get(i));
+                          failure.put("error", error);
+                          snapshots.add(failure);
+                        }
+                      }
+                      result.success(snapshots);
+                    }
+                  });
+          break;
+        }
       case "DocumentReference#delete":
         {
           Map<String, Object> arguments = call.arguments();
@@ -762,6 +1889,38 @@ public class CloudFirestorePlugin implements MethodCallHandler {
           result.success(null);
           break;
         }
+      case "Firestore#importFile":
+        {
+          Map<String, Object> arguments = call.arguments();
+          int handle = nextImportHandle++;
+          EventChannel eventChannel =
+              new EventChannel(messenger, CHANNEL_NAME + "/import/" + handle, METHOD_CODEC);
+          setPendingStreamHandler(
+              eventChannel,
+              new NdjsonImporter(
+                  eventChannel,
+                  getFirestore(arguments),
+                  (String) arguments.get("filePath"),
+                  (Integer) arguments.get("batchSize"),
+                  (Integer) arguments.get("maxInFlight"),
+                  mainThreadHandler));
+          result.success(handle);
+          break;
+        }
+      case "Firestore#setAutoBatchWindow":
+        {
+          Map<String, Object> arguments = call.arguments();
+          String app = (String) arguments.get("app");
+          long windowMillis = ((Number) arguments.get("windowMillis")).longValue();
+          WriteCoalescer coalescer = writeCoalescers.remove(app);
+          if (coalescer != null) coalescer.flush();
+          if (windowMillis > 0) {
+            writeCoalescers.put(
+                app, new WriteCoalescer(getFirestore(arguments), mainThreadHandler, windowMillis));
+          }
+          result.success(null);
+          break;
+        }
       case "Firestore#settings":
         {
           final Map<String, Object> arguments = call.arguments();
@@ -803,7 +1962,11 @@ public class CloudFirestorePlugin implements MethodCallHandler {
 }
 
 final class FirestoreMessageCodec extends StandardMessageCodec {
-  public static final FirestoreMessageCodec INSTANCE = new FirestoreMessageCodec();
+  public static final FirestoreMessageCodec INSTANCE = new FirestoreMessageCodec(true);
+
+  /** A codec that writes all maps as standard maps, for comparison in the codec benchmarks. */
+  static final FirestoreMessageCodec WITHOUT_KEYED_MAPS = new FirestoreMessageCodec(false);
+
   private static final Charset UTF8 = Charset.forName("UTF8");
   private static final byte DATE_TIME = (byte) 128;
   private static final byte GEO_POINT = (byte) 129;
@@ -816,9 +1979,38 @@ final class FirestoreMessageCodec extends StandardMessageCodec {
   private static final byte TIMESTAMP = (byte) 136;
   private static final byte INCREMENT_DOUBLE = (byte) 137;
   private static final byte INCREMENT_INTEGER = (byte) 138;
+  private static final byte KEYED_MAP = (byte) 139;
+
+  // Maps with string keys are written with a table of the distinct keys seen so far, so that
+  // field names repeated across the documents of a snapshot are only encoded once. The table is
+  // shared by all maps of a top-level value of a message, such as the arguments of a method call
+  // or the result of a call, including the documents of a list returned by Firestore#getAll. It
+  // is created when such a value is written or read on the current thread and dropped once the
+  // value is complete.
+  private static final ThreadLocal<Map<String, Integer>> writeKeys = new ThreadLocal<>();
+  private static final ThreadLocal<List<String>> readKeys = new ThreadLocal<>();
+
+  private final boolean writeKeyedMaps;
+
+  private FirestoreMessageCodec(boolean writeKeyedMaps) {
+    this.writeKeyedMaps = writeKeyedMaps;
+  }
 
   @Override
   protected void writeValue(ByteArrayOutputStream stream, Object value) {
+    if (!writeKeyedMaps || writeKeys.get() != null) {
+      writeFirestoreValue(stream, value);
+      return;
+    }
+    writeKeys.set(new HashMap<String, Integer>());
+    try {
+      writeFirestoreValue(stream, value);
+    } finally {
+      writeKeys.remove();
+    }
+  }
+
+  private void writeFirestoreValue(ByteArrayOutputStream stream, Object value) {
     if (value instanceof Date) {
       stream.write(DATE_TIME);
       writeLong(stream, ((Date) value).getTime());
@@ -839,13 +2031,73 @@ final class FirestoreMessageCodec extends StandardMessageCodec {
     } else if (value instanceof Blob) {
       stream.write(BLOB);
       writeBytes(stream, ((Blob) value).toBytes());
+    } else if (writeKeyedMaps && value instanceof Map && hasOnlyStringKeys((Map<?, ?>) value)) {
+      writeKeyedMap(stream, (Map<?, ?>) value);
     } else {
       super.writeValue(stream, value);
     }
   }
 
+  private static boolean hasOnlyStringKeys(Map<?, ?> map) {
+    for (Object key : map.keySet()) {
+      if (!(key instanceof String)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Writes a map whose keys are all strings. Each key is written as its index in the key table;
+   * an index equal to the current size of the table introduces a new key, whose UTF-8 bytes follow.
+   */
+  private void writeKeyedMap(ByteArrayOutputStream stream, Map<?, ?> map) {
+    final Map<String, Integer> keys = writeKeys.get();
+    stream.write(KEYED_MAP);
+    writeSize(stream, map.size());
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      final String key = (String) entry.getKey();
+      final Integer index = keys.get(key);
+      if (index != null) {
+        writeSize(stream, index);
+      } else {
+        final int nextIndex = keys.size();
+        writeSize(stream, nextIndex);
+        writeBytes(stream, key.getBytes(UTF8));
+        keys.put(key, nextIndex);
+      }
+      writeValue(stream, entry.getValue());
+    }
+  }
+
+  private Map<String, Object> readKeyedMap(ByteBuffer buffer) {
+    final List<String> keys = readKeys.get();
+    final int size = readSize(buffer);
+    final Map<String, Object> map = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      final int index = readSize(buffer);
+      final String key;
+      if (index == keys.size()) {
+        key = new String(readBytes(buffer), UTF8);
+        keys.add(key);
+      } else {
+        key = keys.get(index);
+      }
+      map.put(key, readValue(buffer));
+    }
+    return map;
+  }
+
   @Override
   protected Object readValueOfType(byte type, ByteBuffer buffer) {
+    if (readKeys.get() != null) return readFirestoreValueOfType(type, buffer);
+    readKeys.set(new ArrayList<String>());
+    try {
+      return readFirestoreValueOfType(type, buffer);
+    } finally {
+      readKeys.remove();
+    }
+  }
+
+  private Object readFirestoreValueOfType(byte type, ByteBuffer buffer) {
     switch (type) {
       case DATE_TIME:
         return new Date(buffer.getLong());
@@ -879,6 +2131,8 @@ final class FirestoreMessageCodec extends StandardMessageCodec {
       case INCREMENT_DOUBLE:
         final Number doubleIncrementValue = (Number) readValue(buffer);
         return FieldValue.increment(doubleIncrementValue.doubleValue());
+      case KEYED_MAP:
+        return readKeyedMap(buffer);
       default:
         return super.readValueOfType(type, buffer);
     }
@@ -0,0 +1,331 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.cloudfirestore;
+
+import androidx.annotation.NonNull;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Transaction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a list of operations described by Dart as a single transaction, without calling back into
+ * Dart.
+ *
+ * <p>Every document named by an operation is read first, as Firestore requires reads to precede
+ * writes. The operations are then checked and applied in order against a local view of those
+ * documents, so each operation sees the writes of the ones before it. An operation whose
+ * precondition does not hold fails the whole transaction with {@code FAILED_PRECONDITION}, and
+ * nothing is written.
+ *
+ * <p>Supported operation types are {@code set}, {@code update}, {@code delete}, {@code increment}
+ * and {@code move}. Each may carry an {@code exists} precondition and a {@code fieldsEqual} map of
+ * dotted field paths to expected values. The result holds, for each operation, the new values of
+ * the fields it incremented, or null.
+ *
+ * <p>A {@link FieldValue#delete()} in written data removes the field from the local view. Other
+ * {@link FieldValue}s, such as server timestamps, are only resolved by the server, so an operation
+ * that reads such a field or moves a document holding one fails with {@code INVALID_ARGUMENT}.
+ */
+class DeclarativeTransaction implements Transaction.Function<Map<String, Object>> {
+  private final FirebaseFirestore firestore;
+  private final List<Map<String, Object>> operations;
+
+  DeclarativeTransaction(FirebaseFirestore firestore, List<Map<String, Object>> operations) {
+    this.firestore = firestore;
+    this.operations = operations;
+  }
+
+  @Override
+  public Map<String, Object> apply(@NonNull Transaction transaction)
+      throws FirebaseFirestoreException {
+    // The data of each document read, or null if it does not exist. Updated as operations apply.
+    Map<String, Map<String, Object>> documents = new LinkedHashMap<>();
+    for (Map<String, Object> operation : operations) {
+      read(transaction, documents, (String) operation.get("path"));
+      if (operation.get("toPath") != null) {
+        read(transaction, documents, (String) operation.get("toPath"));
+      }
+    }
+
+    List<Object> results = new ArrayList<>(operations.size());
+    for (int i = 0; i < operations.size(); i++) {
+      results.add(applyOperation(transaction, documents, i, operations.get(i)));
+    }
+    Map<String, Object> result = new HashMap<>();
+    result.put("results", results);
+    return result;
+  }
+
+  private void read(
+      Transaction transaction, Map<String, Map<String, Object>> documents, String path)
+      throws FirebaseFirestoreException {
+    if (documents.containsKey(path)) return;
+    DocumentSnapshot snapshot = transaction.get(firestore.document(path));
+    documents.put(path, snapshot.exists() ? copy(snapshot.getData()) : null);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> applyOperation(
+      Transaction transaction,
+      Map<String, Map<String, Object>> documents,
+      int index,
+      Map<String, Object> operation)
+      throws FirebaseFirestoreException {
+    String type = (String) operation.get("type");
+    String path = (String) operation.get("path");
+    DocumentReference reference = firestore.document(path);
+    Map<String, Object> current = documents.get(path);
+    checkPreconditions(index, path, current, operation);
+    Map<String, Object> data = (Map<String, Object>) operation.get("data");
+    switch (type) {
+      case "set":
+        {
+          boolean merge = Boolean.TRUE.equals(operation.get("merge"));
+          if (merge) {
+            transaction.set(reference, data, SetOptions.merge());
+            Map<String, Object> merged = current == null ? new HashMap<String, Object>() : current;
+            merge(merged, data);
+            documents.put(path, merged);
+          } else {
+            transaction.set(reference, data);
+            documents.put(path, copy(data));
+          }
+          return null;
+        }
+      case "update":
+        {
+          if (current == null) throw failed(index, path + " does not exist");
+          transaction.update(reference, data);
+          for (Map.Entry<String, Object> entry : data.entrySet()) {
+            setField(current, entry.getKey(), entry.getValue());
+          }
+          return null;
+        }
+      case "delete":
+        transaction.delete(reference);
+        documents.put(path, null);
+        return null;
+      case "increment":
+        return increment(transaction, documents, index, path, operation);
+      case "move":
+        {
+          if (current == null) throw failed(index, path + " does not exist");
+          String toPath = (String) operation.get("toPath");
+          boolean overwrite = Boolean.TRUE.equals(operation.get("overwrite"));
+          if (!overwrite && documents.get(toPath) != null) {
+            throw failed(index, toPath + " already exists");
+          }
+          if (containsFieldValue(current)) {
+            throw invalid(index, path + " holds a FieldValue that has not been resolved");
+          }
+          transaction.set(firestore.document(toPath), current);
+          transaction.delete(reference);
+          documents.put(toPath, current);
+          documents.put(path, null);
+          return null;
+        }
+      default:
+        throw new FirebaseFirestoreException(
+            "Unknown operation type " + type, FirebaseFirestoreException.Code.INVALID_ARGUMENT);
+    }
+  }
+
+  /**
+   * Adds the numbers in {@code increments} to the document, failing if a result falls outside the
+   * {@code minimum} or {@code maximum} given for its field. Missing fields count as zero, and a
+   * missing document is created.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> increment(
+      Transaction transaction,
+      Map<String, Map<String, Object>> documents,
+      int index,
+      String path,
+      Map<String, Object> operation)
+      throws FirebaseFirestoreException {
+    Map<String, Object> current = documents.get(path);
+    Map<String, Object> increments = (Map<String, Object>) operation.get("increments");
+    Map<String, Object> minimum = (Map<String, Object>) operation.get("minimum");
+    Map<String, Object> maximum = (Map<String, Object>) operation.get("maximum");
+    Map<String, Object> values = new HashMap<>();
+    for (Map.Entry<String, Object> entry : increments.entrySet()) {
+      String field = entry.getKey();
+      Object value = current == null ? null : getField(index, path, current, field);
+      if (value != null && !(value instanceof Number)) {
+        throw failed(index, field + " is not a number");
+      }
+      Number sum = add((Number) value, (Number) entry.getValue());
+      Number lower = minimum == null ? null : (Number) minimum.get(field);
+      if (lower != null && compare(sum, lower) < 0) {
+        throw failed(index, field + " would fall below " + lower);
+      }
+      Number upper = maximum == null ? null : (Number) maximum.get(field);
+      if (upper != null && compare(sum, upper) > 0) {
+        throw failed(index, field + " would exceed " + upper);
+      }
+      values.put(field, sum);
+    }
+    DocumentReference reference = firestore.document(path);
+    if (current == null) {
+      // Dotted keys are field paths in updates but not in sets, so build the nested maps here.
+      current = new HashMap<>();
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        setField(current, entry.getKey(), entry.getValue());
+      }
+      transaction.set(reference, current);
+      documents.put(path, current);
+    } else {
+      transaction.update(reference, values);
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        setField(current, entry.getKey(), entry.getValue());
+      }
+    }
+    return values;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void checkPreconditions(
+      int index, String path, Map<String, Object> current, Map<String, Object> operation)
+      throws FirebaseFirestoreException {
+    Object exists = operation.get("exists");
+    if (Boolean.TRUE.equals(exists) && current == null) {
+      throw failed(index, path + " does not exist");
+    }
+    if (Boolean.FALSE.equals(exists) && current != null) {
+      throw failed(index, path + " already exists");
+    }
+    Map<String, Object> fieldsEqual = (Map<String, Object>) operation.get("fieldsEqual");
+    if (fieldsEqual == null) return;
+    for (Map.Entry<String, Object> entry : fieldsEqual.entrySet()) {
+      Object value = current == null ? null : getField(index, path, current, entry.getKey());
+      if (!CloudFirestorePlugin.valuesEqual(entry.getValue(), value)) {
+        throw failed(index, entry.getKey() + " of " + path + " does not match");
+      }
+    }
+  }
+
+  private static FirebaseFirestoreException failed(int index, String message) {
+    return new FirebaseFirestoreException(
+        "Operation " + index + ": " + message,
+        FirebaseFirestoreException.Code.FAILED_PRECONDITION);
+  }
+
+  private static FirebaseFirestoreException invalid(int index, String message) {
+    return new FirebaseFirestoreException(
+        "Operation " + index + ": " + message, FirebaseFirestoreException.Code.INVALID_ARGUMENT);
+  }
+
+  /**
+   * Returns the value at a dotted field path of the document at {@code path}, or null if any part
+   * of the field path is missing.
+   *
+   * @throws FirebaseFirestoreException if the value is a {@link FieldValue} written earlier in the
+   *     transaction, whose result is not known until the server applies it.
+   */
+  @SuppressWarnings("unchecked")
+  private static Object getField(int index, String path, Map<String, Object> data, String field)
+      throws FirebaseFirestoreException {
+    Object value = data;
+    for (String part : field.split("\\.")) {
+      if (!(value instanceof Map)) return null;
+      value = ((Map<String, Object>) value).get(part);
+    }
+    if (value instanceof FieldValue) {
+      throw invalid(
+          index, field + " of " + path + " holds a FieldValue that has not been resolved");
+    }
+    return value;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static boolean containsFieldValue(Map<String, Object> data) {
+    for (Object value : data.values()) {
+      if (value instanceof FieldValue) return true;
+      if (value instanceof Map && containsFieldValue((Map<String, Object>) value)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Sets the value at a dotted field path, replacing any intermediate value that is not a map, or
+   * removes it if {@code value} is {@link FieldValue#delete()}.
+   */
+  @SuppressWarnings("unchecked")
+  private static void setField(Map<String, Object> data, String field, Object value) {
+    String[] parts = field.split("\\.");
+    Map<String, Object> map = data;
+    for (int i = 0; i < parts.length - 1; i++) {
+      Object child = map.get(parts[i]);
+      if (!(child instanceof Map)) {
+        if (isDelete(value)) return;
+        child = new HashMap<String, Object>();
+        map.put(parts[i], child);
+      }
+      map = (Map<String, Object>) child;
+    }
+    if (isDelete(value)) {
+      map.remove(parts[parts.length - 1]);
+    } else {
+      map.put(parts[parts.length - 1], value);
+    }
+  }
+
+  private static boolean isDelete(Object value) {
+    return FieldValue.delete().equals(value);
+  }
+
+  /** Merges {@code data} into {@code target} the way a set with merge does, map by map. */
+  @SuppressWarnings("unchecked")
+  private static void merge(Map<String, Object> target, Map<String, Object> data) {
+    for (Map.Entry<String, Object> entry : data.entrySet()) {
+      Object value = entry.getValue();
+      Object existing = target.get(entry.getKey());
+      if (isDelete(value)) {
+        target.remove(entry.getKey());
+      } else if (value instanceof Map && existing instanceof Map) {
+        merge((Map<String, Object>) existing, (Map<String, Object>) value);
+      } else {
+        target.put(
+            entry.getKey(), value instanceof Map ? copy((Map<String, Object>) value) : value);
+      }
+    }
+  }
+
+  /** Returns a copy of {@code data} whose nested maps may be modified. */
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> copy(Map<String, Object> data) {
+    Map<String, Object> copy = new HashMap<>();
+    for (Map.Entry<String, Object> entry : data.entrySet()) {
+      Object value = entry.getValue();
+      copy.put(
+          entry.getKey(), value instanceof Map ? copy((Map<String, Object>) value) : value);
+    }
+    return copy;
+  }
+
+  private static boolean isIntegral(Number number) {
+    return !(number instanceof Double || number instanceof Float);
+  }
+
+  private static Number add(Number value, Number delta) {
+    if (value == null) value = 0L;
+    if (isIntegral(value) && isIntegral(delta)) return value.longValue() + delta.longValue();
+    return value.doubleValue() + delta.doubleValue();
+  }
+
+  private static int compare(Number a, Number b) {
+    if (isIntegral(a) && isIntegral(b)) return Long.compare(a.longValue(), b.longValue());
+    return Double.compare(a.doubleValue(), b.doubleValue());
+  }
+}
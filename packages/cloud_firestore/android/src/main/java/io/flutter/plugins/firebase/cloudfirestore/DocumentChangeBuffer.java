@@ -0,0 +1,94 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.cloudfirestore;
+
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates the document changes of consecutive query snapshots so they can be delivered to Dart
+ * as a single change set.
+ *
+ * <p>Document changes are applied one after the other, so the changes of several snapshots
+ * concatenated in order still transform the first result set into the last one. Adjacent changes of
+ * the same document are merged, which keeps a document that changes many times between two
+ * deliveries down to a single entry carrying its latest data.
+ */
+class DocumentChangeBuffer {
+
+  static final class Change {
+    final DocumentChange.Type type;
+    final int oldIndex;
+    final int newIndex;
+    final DocumentSnapshot document;
+
+    Change(DocumentChange.Type type, int oldIndex, int newIndex, DocumentSnapshot document) {
+      this.type = type;
+      this.oldIndex = oldIndex;
+      this.newIndex = newIndex;
+      this.document = document;
+    }
+
+    String getPath() {
+      return document.getReference().getPath();
+    }
+  }
+
+  private List<Change> changes = new ArrayList<>();
+
+  void add(List<DocumentChange> documentChanges) {
+    for (DocumentChange documentChange : documentChanges) {
+      add(
+          new Change(
+              documentChange.getType(),
+              documentChange.getOldIndex(),
+              documentChange.getNewIndex(),
+              documentChange.getDocument()));
+    }
+  }
+
+  private void add(Change change) {
+    if (changes.isEmpty()) {
+      changes.add(change);
+      return;
+    }
+    Change last = changes.get(changes.size() - 1);
+    if (last.type == DocumentChange.Type.REMOVED
+        || change.type == DocumentChange.Type.ADDED
+        || last.newIndex != change.oldIndex
+        || !last.getPath().equals(change.getPath())) {
+      changes.add(change);
+      return;
+    }
+    changes.remove(changes.size() - 1);
+    if (change.type == DocumentChange.Type.REMOVED) {
+      // A document that was added and removed again has no visible effect.
+      if (last.type != DocumentChange.Type.ADDED) {
+        changes.add(new Change(change.type, last.oldIndex, change.newIndex, change.document));
+      }
+    } else {
+      changes.add(new Change(last.type, last.oldIndex, change.newIndex, change.document));
+    }
+  }
+
+  boolean isEmpty() {
+    return changes.isEmpty();
+  }
+
+  /** Returns the accumulated changes and resets the buffer. */
+  List<Change> drain() {
+    List<Change> drained = changes;
+    changes = new ArrayList<>();
+    return drained;
+  }
+
+  static List<Change> of(List<DocumentChange> documentChanges) {
+    DocumentChangeBuffer buffer = new DocumentChangeBuffer();
+    buffer.add(documentChanges);
+    return buffer.drain();
+  }
+}
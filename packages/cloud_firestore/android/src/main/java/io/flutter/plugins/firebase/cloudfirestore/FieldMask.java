@@ -0,0 +1,65 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.cloudfirestore;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields of a document that Dart asked for, as dotted field paths.
+ *
+ * <p>Only the requested fields are read from snapshots, so the rest of the document is neither
+ * converted nor encoded. Nested fields are returned inside maps that hold only those fields.
+ */
+final class FieldMask {
+  private final String[][] segments;
+  private final FieldPath[] paths;
+
+  private FieldMask(List<String> fields) {
+    segments = new String[fields.size()][];
+    paths = new FieldPath[fields.size()];
+    for (int i = 0; i < fields.size(); i++) {
+      segments[i] = fields.get(i).split("\\.");
+      paths[i] = FieldPath.of(segments[i]);
+    }
+  }
+
+  /** Returns the mask in the "fields" argument, or null if all fields were requested. */
+  static FieldMask fromArguments(Map<String, Object> arguments) {
+    @SuppressWarnings("unchecked")
+    List<String> fields = (List<String>) arguments.get("fields");
+    return fields == null ? null : new FieldMask(fields);
+  }
+
+  /** Returns the data of {@code snapshot} restricted to {@code mask}, or all of it if null. */
+  static Map<String, Object> getData(DocumentSnapshot snapshot, FieldMask mask) {
+    return mask == null ? snapshot.getData() : mask.getData(snapshot);
+  }
+
+  private Map<String, Object> getData(DocumentSnapshot snapshot) {
+    if (!snapshot.exists()) return null;
+    Map<String, Object> data = new HashMap<>();
+    for (int i = 0; i < paths.length; i++) {
+      if (!snapshot.contains(paths[i])) continue;
+      String[] fieldSegments = segments[i];
+      Map<String, Object> parent = data;
+      for (int j = 0; j < fieldSegments.length - 1; j++) {
+        Object child = parent.get(fieldSegments[j]);
+        if (!(child instanceof Map)) {
+          child = new HashMap<String, Object>();
+          parent.put(fieldSegments[j], child);
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> childMap = (Map<String, Object>) child;
+        parent = childMap;
+      }
+      parent.put(fieldSegments[fieldSegments.length - 1], snapshot.get(paths[i]));
+    }
+    return data;
+  }
+}
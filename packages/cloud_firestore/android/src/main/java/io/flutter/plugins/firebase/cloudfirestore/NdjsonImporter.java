@@ -0,0 +1,242 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.cloudfirestore;
+
+import android.os.Handler;
+import androidx.annotation.NonNull;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+import io.flutter.plugin.common.EventChannel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes the documents of a newline-delimited JSON file to Firestore, reporting progress over an
+ * event channel.
+ *
+ * <p>Each line of the file is an object with the document {@code path}, its {@code data} and an
+ * optional {@code merge} flag. The file is read on a background thread and written in batches of
+ * {@code batchSize} documents. At most {@code maxInFlight} batches are committed at a time; reading
+ * pauses until a commit completes, so memory use does not depend on the size of the file.
+ *
+ * <p>A progress event is sent after each committed batch. The stream ends once every batch has
+ * been committed, or with an error on the first line that cannot be parsed or the first batch that
+ * fails. Batches committed before a failure are not rolled back.
+ */
+class NdjsonImporter implements EventChannel.StreamHandler {
+  private final EventChannel eventChannel;
+  private final FirebaseFirestore firestore;
+  private final File file;
+  private final int batchSize;
+  private final int maxInFlight;
+  private final Semaphore commitPermits;
+  private final Handler mainThreadHandler;
+  private volatile boolean stopped = false;
+
+  // Only accessed on the main thread.
+  private EventChannel.EventSink events;
+  private boolean finished = false;
+  private long documentsWritten = 0;
+  private int batchesCommitted = 0;
+
+  NdjsonImporter(
+      EventChannel eventChannel,
+      FirebaseFirestore firestore,
+      String path,
+      int batchSize,
+      int maxInFlight,
+      Handler mainThreadHandler) {
+    this.eventChannel = eventChannel;
+    this.firestore = firestore;
+    this.file = new File(path);
+    this.batchSize = batchSize;
+    this.maxInFlight = maxInFlight;
+    this.commitPermits = new Semaphore(maxInFlight);
+    this.mainThreadHandler = mainThreadHandler;
+  }
+
+  @Override
+  public void onListen(Object arguments, EventChannel.EventSink events) {
+    this.events = events;
+    new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                importFile();
+              }
+            },
+            "FirestoreImport")
+        .start();
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    stopped = true;
+    finished = true;
+    eventChannel.setStreamHandler(null);
+  }
+
+  private void importFile() {
+    final long totalBytes = file.length();
+    CountingInputStream input = null;
+    int lineNumber = 0;
+    try {
+      input = new CountingInputStream(new FileInputStream(file));
+      BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+      WriteBatch batch = null;
+      int batchCount = 0;
+      String line;
+      while (!stopped && (line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty()) continue;
+        JSONObject object = new JSONObject(line);
+        DocumentReference reference = firestore.document(object.getString("path"));
+        Map<String, Object> data = toMap(object.getJSONObject("data"));
+        if (batch == null) batch = firestore.batch();
+        if (object.optBoolean("merge")) {
+          batch.set(reference, data, SetOptions.merge());
+        } else {
+          batch.set(reference, data);
+        }
+        batchCount++;
+        if (batchCount == batchSize) {
+          commit(batch, batchCount, input.count, totalBytes);
+          batch = null;
+          batchCount = 0;
+        }
+      }
+      if (batch != null && !stopped) commit(batch, batchCount, input.count, totalBytes);
+      // Wait for the batches still being committed.
+      commitPermits.acquire(maxInFlight);
+      finish(null);
+    } catch (IOException | JSONException | IllegalArgumentException e) {
+      stopped = true;
+      String message = e.getMessage();
+      finish(lineNumber > 0 ? "Line " + lineNumber + ": " + message : message);
+    } catch (InterruptedException e) {
+      stopped = true;
+      finish("Import interrupted");
+    } finally {
+      if (input != null) {
+        try {
+          input.close();
+        } catch (IOException e) {
+          // Nothing left to read.
+        }
+      }
+    }
+  }
+
+  private void commit(
+      WriteBatch batch, final int count, final long bytesRead, final long totalBytes)
+      throws InterruptedException {
+    commitPermits.acquire();
+    Task<Void> task = batch.commit();
+    task.addOnCompleteListener(
+        new OnCompleteListener<Void>() {
+          @Override
+          public void onComplete(@NonNull Task<Void> task) {
+            commitPermits.release();
+            if (!task.isSuccessful()) {
+              stopped = true;
+              Exception e = task.getException();
+              finish(e == null ? "Batch commit failed" : e.getMessage());
+              return;
+            }
+            documentsWritten += count;
+            batchesCommitted++;
+            if (finished) return;
+            Map<String, Object> progress = new HashMap<>();
+            progress.put("documentsWritten", documentsWritten);
+            progress.put("batchesCommitted", batchesCommitted);
+            progress.put("bytesRead", bytesRead);
+            progress.put("totalBytes", totalBytes);
+            events.success(progress);
+          }
+        });
+  }
+
+  /** Ends the stream on the main thread, with an error if {@code errorMessage} is not null. */
+  private void finish(final String errorMessage) {
+    mainThreadHandler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (finished) return;
+            finished = true;
+            if (errorMessage != null) {
+              events.error("Error performing importFile", errorMessage, null);
+            }
+            events.endOfStream();
+            eventChannel.setStreamHandler(null);
+          }
+        });
+  }
+
+  private static Map<String, Object> toMap(JSONObject object) throws JSONException {
+    Map<String, Object> map = new HashMap<>();
+    Iterator<String> keys = object.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      map.put(key, toValue(object.get(key)));
+    }
+    return map;
+  }
+
+  private static Object toValue(Object value) throws JSONException {
+    if (value == JSONObject.NULL) return null;
+    if (value instanceof JSONObject) return toMap((JSONObject) value);
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      List<Object> list = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        list.add(toValue(array.get(i)));
+      }
+      return list;
+    }
+    return value;
+  }
+
+  /** Counts the bytes read from the file, for progress reporting. */
+  private static class CountingInputStream extends FilterInputStream {
+    volatile long count = 0;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result >= 0) count++;
+      return result;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      int result = super.read(buffer, offset, length);
+      if (result > 0) count += result;
+      return result;
+    }
+  }
+}
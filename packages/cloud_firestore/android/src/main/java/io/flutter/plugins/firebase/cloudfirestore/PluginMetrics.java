@@ -0,0 +1,153 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.cloudfirestore;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects latency histograms and document counts for method calls and snapshot emissions of the
+ * plugin, and the encoded byte counts of snapshot emissions.
+ *
+ * <p>Latencies are measured with {@link System#nanoTime()}, which is monotonic. Method calls are
+ * timed from the moment they reach the plugin until their result is sent back. Their replies are
+ * encoded by the channel after that, so their sizes are not known here and are not reported.
+ *
+ * <p>At most {@link #MAX_EMISSION_NAMES} distinct emission names are kept. Emissions under any
+ * further name are recorded under {@link #OTHER_EMISSIONS}.
+ */
+class PluginMetrics {
+
+  /** Upper bounds of the histogram buckets, in microseconds. The last bucket is unbounded. */
+  private static final long[] BUCKET_BOUNDS_MICROS = {
+    100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 1000000
+  };
+
+  static final int MAX_EMISSION_NAMES = 100;
+  static final String OTHER_EMISSIONS = "other";
+
+  private static class Entry {
+    long count;
+    long totalMicros;
+    long maxMicros;
+    long bytes;
+    long documents;
+    final long[] buckets = new long[BUCKET_BOUNDS_MICROS.length + 1];
+
+    void record(long micros, long bytes, long documents) {
+      count++;
+      totalMicros += micros;
+      maxMicros = Math.max(maxMicros, micros);
+      this.bytes += bytes;
+      this.documents += documents;
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket]++;
+    }
+
+    Map<String, Object> toMap(boolean includeBytes) {
+      Map<String, Object> map = new HashMap<>();
+      map.put("count", count);
+      map.put("totalMicros", totalMicros);
+      map.put("maxMicros", maxMicros);
+      if (includeBytes) map.put("bytes", bytes);
+      map.put("documents", documents);
+      List<Long> histogram = new ArrayList<>(buckets.length);
+      for (long bucket : buckets) {
+        histogram.add(bucket);
+      }
+      map.put("histogram", histogram);
+      return map;
+    }
+  }
+
+  private final Map<String, Entry> methods = new HashMap<>();
+  private final Map<String, Entry> emissions = new HashMap<>();
+
+  /**
+   * Returns a result that records the latency of {@code method} and the number of documents in its
+   * reply before forwarding to {@code result}.
+   */
+  Result track(final String method, final Result result) {
+    final long startNanos = System.nanoTime();
+    return new Result() {
+      @Override
+      public void success(Object value) {
+        record(methods, method, startNanos, 0, countDocuments(value));
+        result.success(value);
+      }
+
+      @Override
+      public void error(String errorCode, String errorMessage, Object errorDetails) {
+        record(methods, method, startNanos, 0, 0);
+        result.error(errorCode, errorMessage, errorDetails);
+      }
+
+      @Override
+      public void notImplemented() {
+        result.notImplemented();
+      }
+    };
+  }
+
+  /** Records a snapshot sent to Dart under {@code name}. */
+  synchronized void recordEmission(String name, long startNanos, long bytes, long documents) {
+    if (emissions.size() >= MAX_EMISSION_NAMES && !emissions.containsKey(name)) {
+      name = OTHER_EMISSIONS;
+    }
+    record(emissions, name, startNanos, bytes, documents);
+  }
+
+  private synchronized void record(
+      Map<String, Entry> entries, String name, long startNanos, long bytes, long documents) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(name, entry);
+    }
+    entry.record((System.nanoTime() - startNanos) / 1000, bytes, documents);
+  }
+
+  private static long countDocuments(Object value) {
+    if (value instanceof List) return ((List<?>) value).size();
+    if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      Object paths = map.get("paths");
+      if (paths instanceof List) return ((List<?>) paths).size();
+      if (map.containsKey("path")) return 1;
+    }
+    return 0;
+  }
+
+  synchronized Map<String, Object> toMap() {
+    Map<String, Object> metrics = new HashMap<>();
+    List<Long> bounds = new ArrayList<>(BUCKET_BOUNDS_MICROS.length);
+    for (long bound : BUCKET_BOUNDS_MICROS) {
+      bounds.add(bound);
+    }
+    metrics.put("bucketBoundsMicros", bounds);
+    metrics.put("methods", toMap(methods, false));
+    metrics.put("emissions", toMap(emissions, true));
+    return metrics;
+  }
+
+  private static Map<String, Object> toMap(Map<String, Entry> entries, boolean includeBytes) {
+    Map<String, Object> map = new HashMap<>();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      map.put(entry.getKey(), entry.getValue().toMap(includeBytes));
+    }
+    return map;
+  }
+
+  synchronized void reset() {
+    methods.clear();
+    emissions.clear();
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.cloudfirestore;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.GeoPoint;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds stable string keys from the arguments that describe a query, so that identical queries
+ * sent from Dart map to the same key regardless of map iteration order or boxed number types.
+ */
+final class QueryKey {
+
+  private QueryKey() {}
+
+  /** Returns a key for the given values of {@code arguments}, in order. */
+  static String of(Map<String, Object> arguments, String... names) {
+    StringBuilder builder = new StringBuilder();
+    for (String name : names) {
+      builder.append(name).append('=');
+      append(builder, arguments.get(name));
+      builder.append(';');
+    }
+    return builder.toString();
+  }
+
+  private static void append(StringBuilder builder, Object value) {
+    if (value == null) {
+      builder.append("null");
+    } else if (value instanceof String) {
+      String string = (String) value;
+      builder.append('s').append(string.length()).append(':').append(string);
+    } else if (value instanceof Boolean) {
+      builder.append((Boolean) value ? "true" : "false");
+    } else if (value instanceof Integer || value instanceof Long) {
+      builder.append('i').append(((Number) value).longValue());
+    } else if (value instanceof Number) {
+      builder.append('d').append(((Number) value).doubleValue());
+    } else if (value instanceof Map) {
+      // Sorting by the string form of the keys makes the key independent of iteration order.
+      TreeMap<String, Object> sorted = new TreeMap<>();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        StringBuilder key = new StringBuilder();
+        append(key, entry.getKey());
+        sorted.put(key.toString(), entry.getValue());
+      }
+      builder.append('{');
+      for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+        builder.append(entry.getKey()).append(':');
+        append(builder, entry.getValue());
+        builder.append(',');
+      }
+      builder.append('}');
+    } else if (value instanceof List) {
+      builder.append('[');
+      for (Object element : (List<?>) value) {
+        append(builder, element);
+        builder.append(',');
+      }
+      builder.append(']');
+    } else if (value instanceof DocumentReference) {
+      DocumentReference reference = (DocumentReference) value;
+      builder.append("ref:");
+      append(builder, reference.getFirestore().getApp().getName());
+      append(builder, reference.getPath());
+    } else if (value instanceof Timestamp) {
+      Timestamp timestamp = (Timestamp) value;
+      builder.append("ts:").append(timestamp.getSeconds()).append('.');
+      builder.append(timestamp.getNanoseconds());
+    } else if (value instanceof Date) {
+      builder.append("date:").append(((Date) value).getTime());
+    } else if (value instanceof GeoPoint) {
+      GeoPoint point = (GeoPoint) value;
+      builder.append("geo:").append(point.getLatitude()).append(',');
+      builder.append(point.getLongitude());
+    } else if (value instanceof Blob) {
+      builder.append("blob:").append(Arrays.toString(((Blob) value).toBytes()));
+    } else if (value instanceof byte[]) {
+      builder.append("bytes:").append(Arrays.toString((byte[]) value));
+    } else {
+      builder.append(value.getClass().getName()).append(':').append(value);
+    }
+  }
+}
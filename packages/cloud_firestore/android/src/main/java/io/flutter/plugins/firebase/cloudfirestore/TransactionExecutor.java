@@ -0,0 +1,156 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.cloudfirestore;
+
+import android.util.SparseArray;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the operations of Firestore transactions on a bounded pool of named threads owned by the
+ * plugin, rather than on the process-wide serial {@link android.os.AsyncTask} executor.
+ *
+ * <p>Operations that belong to the same transaction run one at a time in the order they were
+ * submitted, while operations of different transactions run in parallel.
+ */
+class TransactionExecutor {
+  static final int DEFAULT_POOL_SIZE = 4;
+  static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+  private final ThreadPoolExecutor executor;
+  private final int queueCapacity;
+  private final SparseArray<SerialQueue> queues = new SparseArray<>();
+
+  // Operations that have been accepted but have not started running yet.
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  TransactionExecutor(int poolSize, int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+    this.executor =
+        new ThreadPoolExecutor(
+            poolSize,
+            poolSize,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              private final AtomicInteger count = new AtomicInteger();
+
+              @Override
+              public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "FirestoreTransaction #" + count.incrementAndGet());
+              }
+            });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues {@code operation} to run after all operations previously submitted for the same
+   * transaction have completed.
+   *
+   * @throws RejectedExecutionException if the number of queued operations reached the capacity of
+   *     the executor.
+   */
+  void execute(int transactionId, Runnable operation) {
+    SerialQueue queue;
+    synchronized (queues) {
+      queue = queues.get(transactionId);
+      if (queue == null) {
+        queue = new SerialQueue();
+        queues.put(transactionId, queue);
+      }
+    }
+    int depth = queueDepth.incrementAndGet();
+    if (depth > queueCapacity) {
+      queueDepth.decrementAndGet();
+      rejectedCount.incrementAndGet();
+      throw new RejectedExecutionException(
+          "Transaction executor queue is full (" + queueCapacity + " operations)");
+    }
+    int max = maxQueueDepth.get();
+    while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+      max = maxQueueDepth.get();
+    }
+    queue.execute(operation);
+  }
+
+  /** Releases the ordering state kept for a transaction once it has completed. */
+  void finish(int transactionId) {
+    synchronized (queues) {
+      queues.remove(transactionId);
+    }
+  }
+
+  /**
+   * Sets the number of operations of different transactions that may run at the same time.
+   *
+   * @throws IllegalArgumentException if {@code poolSize} is not positive.
+   */
+  void setPoolSize(int poolSize) {
+    if (poolSize < 1) {
+      throw new IllegalArgumentException("Pool size must be positive, was " + poolSize);
+    }
+    if (poolSize > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(poolSize);
+      executor.setCorePoolSize(poolSize);
+    } else {
+      executor.setCorePoolSize(poolSize);
+      executor.setMaximumPoolSize(poolSize);
+    }
+  }
+
+  Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new HashMap<>();
+    metrics.put("poolSize", executor.getMaximumPoolSize());
+    metrics.put("activeCount", executor.getActiveCount());
+    metrics.put("queueDepth", queueDepth.get());
+    metrics.put("maxQueueDepth", maxQueueDepth.get());
+    metrics.put("queueCapacity", queueCapacity);
+    metrics.put("completedCount", executor.getCompletedTaskCount());
+    metrics.put("rejectedCount", rejectedCount.get());
+    return metrics;
+  }
+
+  /** Hands the operations of a single transaction to the pool one at a time. */
+  private class SerialQueue {
+    private final ArrayDeque<Runnable> operations = new ArrayDeque<>();
+    private Runnable active;
+
+    synchronized void execute(final Runnable operation) {
+      operations.offer(
+          new Runnable() {
+            @Override
+            public void run() {
+              queueDepth.decrementAndGet();
+              try {
+                operation.run();
+              } finally {
+                scheduleNext();
+              }
+            }
+          });
+      if (active == null) {
+        scheduleNext();
+      }
+    }
+
+    private synchronized void scheduleNext() {
+      active = operations.poll();
+      if (active != null) {
+        executor.execute(active);
+      }
+    }
+  }
+}
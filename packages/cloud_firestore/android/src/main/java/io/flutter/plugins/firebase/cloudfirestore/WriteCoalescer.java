@@ -0,0 +1,111 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.cloudfirestore;
+
+import android.os.Handler;
+import androidx.annotation.NonNull;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+import io.flutter.plugin.common.MethodChannel.Result;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups document writes that arrive within a short window into a single {@link WriteBatch}.
+ *
+ * <p>The batch is committed when the window that started with its first write ends, or as soon as
+ * it holds {@link #MAX_BATCH_SIZE} writes. The result of every write is completed when its batch
+ * commits, so a write that fails fails the other writes of its batch too. Must be used from the
+ * main thread.
+ */
+class WriteCoalescer {
+  /** The maximum number of writes Firestore accepts in a batch. */
+  static final int MAX_BATCH_SIZE = 500;
+
+  private final FirebaseFirestore firestore;
+  private final Handler handler;
+  private final long windowMillis;
+  private WriteBatch batch;
+  private final List<String> descriptions = new ArrayList<>();
+  private final List<Result> results = new ArrayList<>();
+  private final Runnable commitPending =
+      new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      };
+
+  WriteCoalescer(FirebaseFirestore firestore, Handler handler, long windowMillis) {
+    this.firestore = firestore;
+    this.handler = handler;
+    this.windowMillis = windowMillis;
+  }
+
+  void set(DocumentReference reference, Map<String, Object> data, boolean merge, Result result) {
+    WriteBatch batch = getBatch();
+    if (merge) {
+      batch.set(reference, data, SetOptions.merge());
+    } else {
+      batch.set(reference, data);
+    }
+    added("setData", result);
+  }
+
+  void update(DocumentReference reference, Map<String, Object> data, Result result) {
+    getBatch().update(reference, data);
+    added("updateData", result);
+  }
+
+  private WriteBatch getBatch() {
+    if (batch == null) {
+      batch = firestore.batch();
+      handler.postDelayed(commitPending, windowMillis);
+    }
+    return batch;
+  }
+
+  private void added(String description, Result result) {
+    descriptions.add(description);
+    results.add(result);
+    if (results.size() >= MAX_BATCH_SIZE) flush();
+  }
+
+  /** Commits the pending batch, if any. */
+  void flush() {
+    if (batch == null) return;
+    handler.removeCallbacks(commitPending);
+    final List<String> descriptions = new ArrayList<>(this.descriptions);
+    final List<Result> results = new ArrayList<>(this.results);
+    Task<Void> task = batch.commit();
+    batch = null;
+    this.descriptions.clear();
+    this.results.clear();
+    task.addOnCompleteListener(
+        new OnCompleteListener<Void>() {
+          @Override
+          public void onComplete(@NonNull Task<Void> task) {
+            for (int i = 0; i < results.size(); i++) {
+              if (task.isSuccessful()) {
+                results.get(i).success(null);
+              } else {
+                Exception e = task.getException();
+                results
+                    .get(i)
+                    .error(
+                        "Error performing " + descriptions.get(i),
+                        e == null ? null : e.getMessage(),
+                        null);
+              }
+            }
+          }
+        });
+  }
+}
@@ -6,6 +6,7 @@ library cloud_firestore;
 
 import 'dart:async';
 import 'dart:convert';
+import 'dart:math' as math;
 import 'dart:typed_data';
 import 'dart:ui' show hashValues, hashList;
 
@@ -20,16 +21,19 @@ import 'src/utils/auto_id_generator.dart';
 part 'src/blob.dart';
 part 'src/collection_reference.dart';
 part 'src/document_change.dart';
+part 'src/document_read_result.dart';
 part 'src/document_reference.dart';
 part 'src/document_snapshot.dart';
 part 'src/field_value.dart';
 part 'src/firestore.dart';
 part 'src/firestore_message_codec.dart';
 part 'src/geo_point.dart';
+part 'src/import_progress.dart';
 part 'src/query.dart';
 part 'src/query_snapshot.dart';
 part 'src/snapshot_metadata.dart';
 part 'src/timestamp.dart';
 part 'src/transaction.dart';
+part 'src/transaction_operation.dart';
 part 'src/write_batch.dart';
 part 'src/source.dart';
@@ -23,19 +23,22 @@ enum DocumentChangeType {
 /// It contains the document affected and the type of change that occurred
 /// (added, modified, or removed).
 class DocumentChange {
-  DocumentChange._(Map<dynamic, dynamic> data, this._firestore)
+  DocumentChange._(Map<dynamic, dynamic> data, this._firestore,
+      [SnapshotMetadata metadata])
       : oldIndex = data['oldIndex'],
         newIndex = data['newIndex'],
         document = DocumentSnapshot._(
           data['path'],
           _asStringKeyedMap(data['document']),
-          SnapshotMetadata._(data["metadata"]["hasPendingWrites"],
-              data["metadata"]["isFromCache"]),
+          metadata ??
+              SnapshotMetadata._(data["metadata"]["hasPendingWrites"],
+                  data["metadata"]["isFromCache"]),
           _firestore,
         ),
-        type = DocumentChangeType.values.firstWhere((DocumentChangeType type) {
-          return type.toString() == data['type'];
-        });
+        type = _parseDocumentChangeType(data['type']);
+
+  DocumentChange._fromParts(
+      this.type, this.oldIndex, this.newIndex, this.document, this._firestore);
 
   final Firestore _firestore;
 
@@ -59,3 +62,9 @@ class DocumentChange {
   /// The document affected by this change.
   final DocumentSnapshot document;
 }
+
+DocumentChangeType _parseDocumentChangeType(String type) {
+  return DocumentChangeType.values.firstWhere((DocumentChangeType value) {
+    return value.toString() == type;
+  });
+}
@@ -79,16 +79,73 @@ class DocumentReference {
   /// Reads the document referenced by this [DocumentReference].
   ///
   /// If no document exists, the read will return null.
-  Future<DocumentSnapshot> get({Source source = Source.serverAndCache}) async {
-    final Map<String, dynamic> data =
-        await Firestore.channel.invokeMapMethod<String, dynamic>(
-      'DocumentReference#get',
-      <String, dynamic>{
-        'app': firestore.app.name,
-        'path': path,
-        'source': _getSourceString(source),
-      },
+  ///
+  /// If [fields] is set, only the listed fields are returned, as described in
+  /// [snapshots].
+  Future<DocumentSnapshot> get(
+      {Source source = Source.serverAndCache, List<String> fields}) async {
+    final Map<String, dynamic> arguments = <String, dynamic>{
+      'app': firestore.app.name,
+      'path': path,
+      'source': _getSourceString(source),
+    };
+    if (fields != null) arguments['fields'] = fields;
+    final Map<String, dynamic> data = await Firestore.channel
+        .invokeMapMethod<String, dynamic>('DocumentReference#get', arguments);
+    return _parseSnapshot(data);
+  }
+
+  /// Reads the document from the cache and from the server at the same time.
+  ///
+  /// The cached snapshot is emitted as soon as it is available, followed by
+  /// the server snapshot. The server snapshot is skipped if its data is the
+  /// same as that of the cached snapshot, and the cached snapshot is skipped
+  /// if the document is not cached or the server answers first. The stream
+  /// closes once the server has answered, or with its error.
+  ///
+  /// If [fields] is set, only the listed fields are returned, as described in
+  /// [snapshots].
+  Stream<DocumentSnapshot> getCacheThenServer({List<String> fields}) async* {
+    final Map<String, dynamic> arguments = <String, dynamic>{
+      'app': firestore.app.name,
+      'path': path,
+    };
+    if (fields != null) arguments['fields'] = fields;
+    int handle;
+    try {
+      handle = await Firestore.channel
+          .invokeMethod<int>('DocumentReference#getCacheThenServer', arguments);
+    } on MissingPluginException {
+      // Platforms without a native implementation start both reads here.
+      final Future<DocumentSnapshot> server =
+          get(source: Source.server, fields: fields);
+      bool serverDone = false;
+      server.then<void>((DocumentSnapshot _) => serverDone = true,
+          onError: (dynamic _) => serverDone = true);
+      DocumentSnapshot cached;
+      try {
+        cached = await get(source: Source.cache, fields: fields);
+      } on PlatformException {
+        // The document is not cached.
+      }
+      if (serverDone) cached = null;
+      if (cached != null) yield cached;
+      final DocumentSnapshot result = await server;
+      if (cached == null ||
+          !const DeepCollectionEquality().equals(cached.data, result.data)) {
+        yield result;
+      }
+      return;
+    }
+    final EventChannel eventChannel = EventChannel(
+      'plugins.flutter.io/cloud_firestore/cacheThenServer/$handle',
+      Firestore.channel.codec,
     );
+    yield* eventChannel.receiveBroadcastStream().map(
+        (dynamic data) => _parseSnapshot(Map<String, dynamic>.from(data)));
+  }
+
+  DocumentSnapshot _parseSnapshot(Map<String, dynamic> data) {
     return DocumentSnapshot._(
       data['path'],
       _asStringKeyedMap(data['data']),
@@ -115,23 +172,46 @@ class DocumentReference {
   }
 
   /// Notifies of documents at this location
+  ///
+  /// If [throttle] is set, snapshots are delivered at most once per
+  /// [throttle] interval; only the latest snapshot of each interval is
+  /// delivered.
+  ///
+  /// If [fields] is set, snapshots only contain the listed fields. Nested
+  /// fields are given as dotted paths, such as `address.city`. Projection is
+  /// applied on Android only; other platforms return all fields.
+  ///
+  /// If [backgroundSerialization] is true, snapshots are received and
+  /// converted for the platform channel on a background thread on Android.
   // TODO(jackson): Reduce code duplication with [Query]
-  Stream<DocumentSnapshot> snapshots({bool includeMetadataChanges = false}) {
+  Stream<DocumentSnapshot> snapshots(
+      {bool includeMetadataChanges = false,
+      Duration throttle,
+      List<String> fields,
+      bool backgroundSerialization = false}) {
     assert(includeMetadataChanges != null);
+    assert(backgroundSerialization != null);
     Future<int> _handle;
     // It's fine to let the StreamController be garbage collected once all the
     // subscribers have cancelled; this analyzer warning is safe to ignore.
     StreamController<DocumentSnapshot> controller; // ignore: close_sinks
     controller = StreamController<DocumentSnapshot>.broadcast(
       onListen: () {
-        _handle = Firestore.channel.invokeMethod<int>(
-          'DocumentReference#addSnapshotListener',
-          <String, dynamic>{
-            'app': firestore.app.name,
-            'path': path,
-            'includeMetadataChanges': includeMetadataChanges,
-          },
-        ).then<int>((dynamic result) => result);
+        final Map<String, dynamic> arguments = <String, dynamic>{
+          'app': firestore.app.name,
+          'path': path,
+          'includeMetadataChanges': includeMetadataChanges,
+        };
+        if (throttle != null) {
+          arguments['throttleMillis'] = throttle.inMilliseconds;
+        }
+        if (fields != null) arguments['fields'] = fields;
+        if (backgroundSerialization) {
+          arguments['backgroundSerialization'] = true;
+        }
+        _handle = Firestore.channel
+            .invokeMethod<int>('DocumentReference#addSnapshotListener', arguments)
+            .then<int>((dynamic result) => result);
         _handle.then((int handle) {
           Firestore._documentObservers[handle] = controller;
         });
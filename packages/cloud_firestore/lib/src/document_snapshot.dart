@@ -10,11 +10,16 @@ part of cloud_firestore;
 /// The data can be extracted with the data property or by using subscript
 /// syntax to access a specific field.
 class DocumentSnapshot {
-  DocumentSnapshot._(this._path, this.data, this.metadata, this._firestore);
+  DocumentSnapshot._(this._path, this.data, this.metadata, this._firestore,
+      [this._cursorToken]);
 
   final String _path;
   final Firestore _firestore;
 
+  /// Identifies this snapshot to the platform when it is used as a query
+  /// cursor, or null if the platform did not cache it.
+  final int _cursorToken;
+
   /// The reference that produced this snapshot
   DocumentReference get reference => _firestore.document(_path);
 
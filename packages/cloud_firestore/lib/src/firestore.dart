@@ -12,8 +12,27 @@ class Firestore {
     if (_initialized) return;
     channel.setMethodCallHandler((MethodCall call) async {
       if (call.method == 'QuerySnapshot') {
-        final QuerySnapshot snapshot = QuerySnapshot._(call.arguments, this);
-        _queryObservers[call.arguments['handle']].add(snapshot);
+        // A snapshot shared by several listeners of the same query lists all
+        // of their handles.
+        final List<dynamic> handles =
+            call.arguments['handles'] ?? <dynamic>[call.arguments['handle']];
+        final bool isDelta = call.arguments['isDelta'] == true;
+        final QuerySnapshot fullSnapshot =
+            isDelta ? null : QuerySnapshot._(call.arguments, this);
+        for (final int handle in handles) {
+          // A snapshot sent before a listener was removed may still name its
+          // handle, and a delta needs the snapshot it applies to.
+          if (!_queryObservers.containsKey(handle)) continue;
+          if (isDelta && _deltaQuerySnapshots[handle] == null) continue;
+          final QuerySnapshot snapshot = isDelta
+              ? QuerySnapshot._applyDelta(
+                  _deltaQuerySnapshots[handle], call.arguments, this)
+              : fullSnapshot;
+          if (_deltaQuerySnapshots.containsKey(handle)) {
+            _deltaQuerySnapshots[handle] = snapshot;
+          }
+          _queryObservers[handle]?.add(snapshot);
+        }
       } else if (call.method == 'DocumentSnapshot') {
         final DocumentSnapshot snapshot = DocumentSnapshot._(
           call.arguments['path'],
@@ -22,7 +41,9 @@ class Firestore {
               call.arguments['metadata']['isFromCache']),
           this,
         );
-        _documentObservers[call.arguments['handle']].add(snapshot);
+        // A snapshot sent before a listener was removed may still name its
+        // handle.
+        _documentObservers[call.arguments['handle']]?.add(snapshot);
       } else if (call.method == 'DoTransaction') {
         final int transactionId = call.arguments['transactionId'];
         final Transaction transaction = Transaction(transactionId, this);
@@ -54,6 +75,11 @@ class Firestore {
   static final Map<int, StreamController<QuerySnapshot>> _queryObservers =
       <int, StreamController<QuerySnapshot>>{};
 
+  /// The last snapshot delivered to each listener that requested delta
+  /// delivery, used as the base for applying the next set of changes.
+  static final Map<int, QuerySnapshot> _deltaQuerySnapshots =
+      <int, QuerySnapshot>{};
+
   static final Map<int, StreamController<DocumentSnapshot>> _documentObservers =
       <int, StreamController<DocumentSnapshot>>{};
 
@@ -90,6 +116,73 @@ class Firestore {
     return DocumentReference._(this, path.split('/'));
   }
 
+  /// Reads all of the documents referred to by [references] in a single
+  /// platform call.
+  ///
+  /// The reads are issued concurrently and the results are returned in the
+  /// same order as [references]. A failure to read one document does not fail
+  /// the others; it is reported through [DocumentReadResult.error].
+  ///
+  /// On platforms that do not support batched reads, the documents are read
+  /// with one call each.
+  ///
+  /// If [fields] is set, only the listed fields of each document are
+  /// returned, as described in [DocumentReference.snapshots].
+  Future<List<DocumentReadResult>> getAll(List<DocumentReference> references,
+      {Source source = Source.serverAndCache, List<String> fields}) async {
+    assert(references != null);
+    assert(source != null);
+    final Map<String, dynamic> arguments = <String, dynamic>{
+      'app': app.name,
+      'paths': references
+          .map((DocumentReference reference) => reference.path)
+          .toList(),
+      'source': _getSourceString(source),
+    };
+    if (fields != null) arguments['fields'] = fields;
+    List<Map<dynamic, dynamic>> results;
+    try {
+      results = await channel.invokeListMethod<Map<dynamic, dynamic>>(
+          'Firestore#getAll', arguments);
+    } on MissingPluginException {
+      // Platforms without a native implementation read the documents one by
+      // one.
+      return Future.wait(references.map((DocumentReference reference) {
+        return reference.get(source: source, fields: fields).then<
+                DocumentReadResult>(
+            (DocumentSnapshot snapshot) =>
+                DocumentReadResult._(reference, snapshot, null),
+            onError: (dynamic error) => DocumentReadResult._(reference, null,
+                error is PlatformException
+                    ? error
+                    : PlatformException(
+                        code: 'UNKNOWN', message: error.toString())));
+      }));
+    }
+    return List<DocumentReadResult>.generate(results.length, (int index) {
+      final Map<dynamic, dynamic> data = results[index];
+      final Map<dynamic, dynamic> error = data['error'];
+      if (error != null) {
+        return DocumentReadResult._(
+          references[index],
+          null,
+          PlatformException(code: error['code'], message: error['message']),
+        );
+      }
+      return DocumentReadResult._(
+        references[index],
+        DocumentSnapshot._(
+          data['path'],
+          _asStringKeyedMap(data['data']),
+          SnapshotMetadata._(data['metadata']['hasPendingWrites'],
+              data['metadata']['isFromCache']),
+          this,
+        ),
+        null,
+      );
+    });
+  }
+
   /// Creates a write batch, used for performing multiple writes as a single
   /// atomic operation.
   ///
@@ -135,6 +228,111 @@ class Firestore {
     return result ?? <String, dynamic>{};
   }
 
+  /// Runs [operations] in order as a single transaction.
+  ///
+  /// Unlike [runTransaction], the transaction does not call back into Dart,
+  /// so it does not hold a native thread while waiting for Dart and retries
+  /// on contention without a round trip. All documents named by [operations]
+  /// are read before anything is written.
+  ///
+  /// If the transaction fails, nothing is written and a [PlatformException]
+  /// is thrown whose code is the name of the Firestore error code, such as
+  /// `ABORTED` or `PERMISSION_DENIED`. A precondition of an operation that
+  /// does not hold fails with `FAILED_PRECONDITION`. Otherwise the result
+  /// has one entry per operation: the new values of the fields incremented by
+  /// an [TransactionOperation.increment], keyed by field path, or null.
+  ///
+  /// A [FieldValue.delete] written by an operation removes the field for the
+  /// operations after it. Other [FieldValue]s are only resolved by the server,
+  /// so an operation that checks or increments such a field, or moves a
+  /// document holding one, fails with `INVALID_ARGUMENT`.
+  ///
+  /// Only available on Android.
+  Future<List<Map<String, dynamic>>> runTransactionOperations(
+      List<TransactionOperation> operations) async {
+    assert(operations != null && operations.isNotEmpty);
+    final Map<String, dynamic> result =
+        await channel.invokeMapMethod<String, dynamic>(
+      'Firestore#runTransactionOperations',
+      <String, dynamic>{
+        'app': app.name,
+        'operations': operations
+            .map((TransactionOperation operation) => operation._toMap())
+            .toList(),
+      },
+    );
+    return result['results']
+        .map<Map<String, dynamic>>((dynamic values) =>
+            values == null ? null : Map<String, dynamic>.from(values))
+        .toList();
+  }
+
+  /// Sets the number of threads used to run the operations of transactions
+  /// on Android.
+  ///
+  /// Operations of the same transaction always run one at a time and in
+  /// order; operations of different transactions run in parallel, up to
+  /// [poolSize] at a time. This setting is shared by all [Firestore] instances
+  /// and has no effect on iOS. A [poolSize] that is not positive fails with a
+  /// [PlatformException].
+  static Future<void> setTransactionPoolSize(int poolSize) async {
+    assert(poolSize != null && poolSize > 0);
+    await channel.invokeMethod<void>(
+      'Firestore#setTransactionPoolSize',
+      <String, dynamic>{'poolSize': poolSize},
+    );
+  }
+
+  /// Returns counters describing the executor that runs transaction
+  /// operations on Android, such as `queueDepth`, `maxQueueDepth`,
+  /// `activeCount`, `completedCount` and `rejectedCount`.
+  static Future<Map<String, dynamic>> getTransactionExecutorMetrics() {
+    return channel.invokeMapMethod<String, dynamic>(
+      'Firestore#getTransactionExecutorMetrics',
+    );
+  }
+
+  /// Returns counters describing the cache of native query objects on
+  /// Android: `size`, `maxSize`, `hitCount`, `missCount` and `evictionCount`.
+  static Future<Map<String, dynamic>> getQueryCacheMetrics() {
+    return channel.invokeMapMethod<String, dynamic>(
+      'Firestore#getQueryCacheMetrics',
+    );
+  }
+
+  /// Returns the metrics collected by the plugin on Android.
+  ///
+  /// The map contains `methods`, keyed by method name, and `emissions`, keyed
+  /// by snapshot kind and query path. Each entry holds a `count`,
+  /// `totalMicros`, `maxMicros`, `documents` and a latency `histogram` whose
+  /// bucket upper bounds are listed in `bucketBoundsMicros`. Emission entries
+  /// also hold the encoded `bytes` of the snapshots. At most 100 emission
+  /// entries are kept; snapshots of further query paths are counted under
+  /// `other`. The `transactionExecutor` and `queryCache` entries
+  /// hold the same counters as [getTransactionExecutorMetrics] and
+  /// [getQueryCacheMetrics].
+  static Future<Map<String, dynamic>> getPluginMetrics() {
+    return channel.invokeMapMethod<String, dynamic>(
+      'Firestore#getPluginMetrics',
+    );
+  }
+
+  /// Clears the latency, byte and document counters of [getPluginMetrics].
+  static Future<void> resetPluginMetrics() async {
+    await channel.invokeMethod<void>('Firestore#resetPluginMetrics');
+  }
+
+  /// Returns a stream of [getPluginMetrics] results, sent every [interval].
+  static Stream<Map<String, dynamic>> pluginMetrics(
+      {Duration interval = const Duration(seconds: 10)}) {
+    assert(interval != null);
+    final EventChannel eventChannel =
+        EventChannel('${channel.name}/metrics', channel.codec);
+    return eventChannel.receiveBroadcastStream(<String, dynamic>{
+      'intervalMillis': interval.inMilliseconds,
+    }).map((dynamic metrics) => Map<String, dynamic>.from(metrics));
+  }
+
   @deprecated
   Future<void> enablePersistence(bool enable) async {
     assert(enable != null);
@@ -160,4 +358,74 @@ class Firestore {
       'cacheSizeBytes': cacheSizeBytes,
     });
   }
+
+  /// Groups the [DocumentReference.setData] and [DocumentReference.updateData]
+  /// calls issued within [window] of each other into a single write batch.
+  ///
+  /// A batch is committed when the window started by its first write ends,
+  /// or once it holds 500 writes. Each write completes when its batch is
+  /// committed, and fails if any write of the batch fails. Any other call
+  /// made through this [Firestore], or through a [Query], [DocumentReference]
+  /// or [Transaction] of it, commits the pending batch first, so writes keep
+  /// their order. Calls for other apps do not. Passing null or
+  /// [Duration.zero] disables batching.
+  ///
+  /// Automatic batching is only available on Android; on other platforms
+  /// writes are always sent individually.
+  Future<void> setAutoBatchWindow(Duration window) async {
+    try {
+      await channel.invokeMethod<void>(
+        'Firestore#setAutoBatchWindow',
+        <String, dynamic>{
+          'app': app.name,
+          'windowMillis': window?.inMilliseconds ?? 0,
+        },
+      );
+    } on MissingPluginException {
+      // Writes are not batched on this platform.
+    }
+  }
+
+  /// Writes the documents of the newline-delimited JSON file at [filePath].
+  ///
+  /// Each line of the file is an object of the form
+  /// `{"path": "users/alice", "data": {...}, "merge": false}`, where `merge`
+  /// is optional. Values of `data` are written as strings, numbers, booleans,
+  /// nulls, maps and lists.
+  ///
+  /// The file is read natively and written in batches of [batchSize]
+  /// documents, with at most [maxInFlight] batches being committed at a time.
+  /// An [ImportProgress] is emitted after each committed batch. The stream
+  /// fails on the first line that cannot be read or batch that fails to
+  /// commit; batches committed before then are not rolled back. Cancelling
+  /// the subscription stops reading the file.
+  ///
+  /// Only available on Android.
+  Stream<ImportProgress> importFile(String filePath,
+      {int batchSize = 500, int maxInFlight = 4}) async* {
+    assert(filePath != null);
+    assert(batchSize != null && batchSize > 0 && batchSize <= 500);
+    assert(maxInFlight != null && maxInFlight > 0);
+    final int handle = await channel.invokeMethod<int>(
+      'Firestore#importFile',
+      <String, dynamic>{
+        'app': app.name,
+        'filePath': filePath,
+        'batchSize': batchSize,
+        'maxInFlight': maxInFlight,
+      },
+    );
+    final EventChannel eventChannel = EventChannel(
+      '${channel.name}/import/$handle',
+      channel.codec,
+    );
+    yield* eventChannel.receiveBroadcastStream().map((dynamic progress) {
+      return ImportProgress._(
+        progress['documentsWritten'],
+        progress['batchesCommitted'],
+        progress['bytesRead'],
+        progress['totalBytes'],
+      );
+    });
+  }
 }
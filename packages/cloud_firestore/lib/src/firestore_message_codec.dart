@@ -19,6 +19,15 @@ class FirestoreMessageCodec extends StandardMessageCodec {
   static const int _kTimestamp = 136;
   static const int _kIncrementDouble = 137;
   static const int _kIncrementInteger = 138;
+  static const int _kKeyedMap = 139;
+
+  /// Key table of the top-level value currently being read.
+  ///
+  /// Maps sent by the platform may refer to keys by their index in this table
+  /// so that field names repeated across documents are only encoded once. The
+  /// table is shared by all maps of a top-level value of a message, such as
+  /// the result of a call, including the documents of a list.
+  static List<String> _readKeys;
 
   static const Map<FieldValueType, int> _kFieldValueCodes =
       <FieldValueType, int>{
@@ -104,8 +113,39 @@ class FirestoreMessageCodec extends StandardMessageCodec {
       case _kIncrementInteger:
         final int value = readValue(buffer);
         return FieldValue.increment(value);
+      case _kKeyedMap:
+        return _readKeyedMap(buffer);
       default:
         return super.readValueOfType(type, buffer);
     }
   }
+
+  @override
+  dynamic readValue(ReadBuffer buffer) {
+    if (_readKeys != null) return super.readValue(buffer);
+    _readKeys = <String>[];
+    try {
+      return super.readValue(buffer);
+    } finally {
+      _readKeys = null;
+    }
+  }
+
+  Map<dynamic, dynamic> _readKeyedMap(ReadBuffer buffer) {
+    final int length = readSize(buffer);
+    final Map<dynamic, dynamic> result = <dynamic, dynamic>{};
+    for (int i = 0; i < length; i++) {
+      final int index = readSize(buffer);
+      String key;
+      if (index == _readKeys.length) {
+        final int keyLength = readSize(buffer);
+        key = utf8.decoder.convert(buffer.getUint8List(keyLength));
+        _readKeys.add(key);
+      } else {
+        key = _readKeys[index];
+      }
+      result[key] = readValue(buffer);
+    }
+    return result;
+  }
 }
@@ -0,0 +1,25 @@
+// Copyright 2019, the Chromium project authors.  Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+
+part of cloud_firestore;
+
+/// The progress of a [Firestore.importFile] call, reported after each
+/// committed batch.
+class ImportProgress {
+  ImportProgress._(this.documentsWritten, this.batchesCommitted,
+      this.bytesRead, this.totalBytes);
+
+  /// The number of documents committed so far.
+  final int documentsWritten;
+
+  /// The number of batches committed so far.
+  final int batchesCommitted;
+
+  /// The number of bytes of the file read up to the end of the last committed
+  /// batch.
+  final int bytesRead;
+
+  /// The size of the file in bytes.
+  final int totalBytes;
+}
@@ -41,6 +41,58 @@ class Query {
     );
   }
 
+  /// Describes [documentSnapshot] as a query cursor. The platform resolves
+  /// the cursor from its token if it still caches the snapshot, and otherwise
+  /// from its data. Only the first and last documents of the results of
+  /// queries with a limit have tokens.
+  static Map<String, dynamic> _cursorDocument(
+      DocumentSnapshot documentSnapshot) {
+    final Map<String, dynamic> cursor = <String, dynamic>{
+      'id': documentSnapshot.documentID,
+      'path': documentSnapshot.reference.path,
+      'data': documentSnapshot.data,
+    };
+    if (documentSnapshot._cursorToken != null) {
+      cursor['cursorToken'] = documentSnapshot._cursorToken;
+    }
+    return cursor;
+  }
+
+  /// Returns the parameters to send to the platform. Cursor documents that
+  /// carry a token are sent without their data, unless [withCursorData] is
+  /// true.
+  Map<String, dynamic> _channelParameters({bool withCursorData = false}) {
+    if (withCursorData) return _parameters;
+    Map<String, dynamic> parameters;
+    for (String key in const <String>[
+      'startAtDocument',
+      'startAfterDocument',
+      'endAtDocument',
+      'endBeforeDocument',
+    ]) {
+      final Map<String, dynamic> cursor = _parameters[key];
+      if (cursor == null || cursor['cursorToken'] == null) continue;
+      parameters ??= Map<String, dynamic>.from(_parameters);
+      parameters[key] = Map<String, dynamic>.from(cursor)..remove('data');
+    }
+    return parameters ?? _parameters;
+  }
+
+  /// Invokes [method] with the query parameters added to [arguments]. If the
+  /// platform no longer caches a cursor document sent by token, the call is
+  /// repeated with the data of the cursor documents.
+  Future<T> _invokeWithParameters<T>(
+      String method, Map<String, dynamic> arguments) async {
+    arguments['parameters'] = _channelParameters();
+    try {
+      return await Firestore.channel.invokeMethod<T>(method, arguments);
+    } on PlatformException catch (e) {
+      if (e.code != 'cursor-expired') rethrow;
+      arguments['parameters'] = _channelParameters(withCursorData: true);
+      return Firestore.channel.invokeMethod<T>(method, arguments);
+    }
+  }
+
   Map<String, dynamic> buildArguments() {
     return Map<String, dynamic>.from(_parameters)
       ..addAll(<String, dynamic>{
@@ -49,27 +101,66 @@ class Query {
   }
 
   /// Notifies of query results at this location
+  ///
+  /// If [deltaOnly] is true, only the first snapshot carries the full result
+  /// set. Subsequent snapshots are built by applying the document changes
+  /// sent by the platform to the previous snapshot, so each update costs
+  /// roughly as much as the number of changed documents rather than the size
+  /// of the result set. When combined with [includeMetadataChanges], changes
+  /// that only affect the metadata of a document are reported as
+  /// [DocumentChangeType.modified].
+  ///
+  /// If [throttle] is set, snapshots are delivered at most once per
+  /// [throttle] interval. Snapshots that arrive in between are merged: the
+  /// latest result set is delivered along with the document changes of all
+  /// the snapshots it replaces.
+  ///
+  /// If [fields] is set, snapshots only contain the listed fields. Nested
+  /// fields are given as dotted paths, such as `address.city`. Fields used to
+  /// order the query must be included if the documents are used as cursors,
+  /// unless the platform still caches them: using a document that lacks one
+  /// as a cursor fails the query with a [PlatformException] whose code is
+  /// `cursor-field-missing`. Projection is applied on Android only;
+  /// other platforms return all fields.
+  ///
+  /// If [backgroundSerialization] is true, snapshots are received and
+  /// converted for the platform channel on a background thread on Android,
+  /// keeping large result sets off the platform's main thread.
   // TODO(jackson): Reduce code duplication with [DocumentReference]
-  Stream<QuerySnapshot> snapshots({bool includeMetadataChanges = false}) {
+  Stream<QuerySnapshot> snapshots(
+      {bool includeMetadataChanges = false,
+      bool deltaOnly = false,
+      Duration throttle,
+      List<String> fields,
+      bool backgroundSerialization = false}) {
     assert(includeMetadataChanges != null);
+    assert(deltaOnly != null);
+    assert(backgroundSerialization != null);
     Future<int> _handle;
     // It's fine to let the StreamController be garbage collected once all the
     // subscribers have cancelled; this analyzer warning is safe to ignore.
     StreamController<QuerySnapshot> controller; // ignore: close_sinks
     controller = StreamController<QuerySnapshot>.broadcast(
       onListen: () {
-        _handle = Firestore.channel.invokeMethod<int>(
-          'Query#addSnapshotListener',
-          <String, dynamic>{
-            'app': firestore.app.name,
-            'path': _path,
-            'isCollectionGroup': _isCollectionGroup,
-            'parameters': _parameters,
-            'includeMetadataChanges': includeMetadataChanges,
-          },
-        ).then<int>((dynamic result) => result);
+        final Map<String, dynamic> arguments = <String, dynamic>{
+          'app': firestore.app.name,
+          'path': _path,
+          'isCollectionGroup': _isCollectionGroup,
+          'includeMetadataChanges': includeMetadataChanges,
+        };
+        if (deltaOnly) arguments['deltaOnly'] = true;
+        if (throttle != null) {
+          arguments['throttleMillis'] = throttle.inMilliseconds;
+        }
+        if (fields != null) arguments['fields'] = fields;
+        if (backgroundSerialization) {
+          arguments['backgroundSerialization'] = true;
+        }
+        _handle =
+            _invokeWithParameters<int>('Query#addSnapshotListener', arguments);
         _handle.then((int handle) {
           Firestore._queryObservers[handle] = controller;
+          if (deltaOnly) Firestore._deltaQuerySnapshots[handle] = null;
         });
       },
       onCancel: () {
@@ -79,6 +170,7 @@ class Query {
             <String, dynamic>{'handle': handle},
           );
           Firestore._queryObservers.remove(handle);
+          Firestore._deltaQuerySnapshots.remove(handle);
         });
       },
     );
@@ -86,23 +178,146 @@ class Query {
   }
 
   /// Fetch the documents for this query
+  ///
+  /// If [fields] is set, only the listed fields of each document are
+  /// returned, as described in [snapshots].
   Future<QuerySnapshot> getDocuments(
-      {Source source = Source.serverAndCache}) async {
+      {Source source = Source.serverAndCache, List<String> fields}) async {
     assert(source != null);
+    final Map<String, dynamic> arguments = <String, dynamic>{
+      'app': firestore.app.name,
+      'path': _path,
+      'isCollectionGroup': _isCollectionGroup,
+      'source': _getSourceString(source),
+    };
+    if (fields != null) arguments['fields'] = fields;
     final Map<dynamic, dynamic> data =
-        await Firestore.channel.invokeMapMethod<String, dynamic>(
-      'Query#getDocuments',
-      <String, dynamic>{
-        'app': firestore.app.name,
-        'path': _path,
-        'isCollectionGroup': _isCollectionGroup,
-        'parameters': _parameters,
-        'source': _getSourceString(source),
-      },
-    );
+        await _invokeWithParameters<dynamic>('Query#getDocuments', arguments);
     return QuerySnapshot._(data, firestore);
   }
 
+  /// Fetch the documents for this query from the cache and from the server
+  /// at the same time.
+  ///
+  /// The cached result is emitted as soon as it is available, followed by the
+  /// server result. The server result is skipped if its documents hold the
+  /// same data as the cached ones. The cached result is skipped if it has no
+  /// documents, as when nothing is cached yet, if it cannot be read, or if
+  /// the server answers first. The stream closes once the server has
+  /// answered, or with its error.
+  ///
+  /// If [fields] is set, only the listed fields of each document are
+  /// returned, as described in [snapshots].
+  Stream<QuerySnapshot> getDocumentsCacheThenServer(
+      {List<String> fields}) async* {
+    final Map<String, dynamic> arguments = <String, dynamic>{
+      'app': firestore.app.name,
+      'path': _path,
+      'isCollectionGroup': _isCollectionGroup,
+    };
+    if (fields != null) arguments['fields'] = fields;
+    int handle;
+    try {
+      handle = await _invokeWithParameters<int>(
+          'Query#getDocumentsCacheThenServer', arguments);
+    } on MissingPluginException {
+      // Platforms without a native implementation start both reads here.
+      final Future<QuerySnapshot> server =
+          getDocuments(source: Source.server, fields: fields);
+      bool serverDone = false;
+      server.then<void>((QuerySnapshot _) => serverDone = true,
+          onError: (dynamic _) => serverDone = true);
+      QuerySnapshot cached;
+      try {
+        cached = await getDocuments(source: Source.cache, fields: fields);
+      } on PlatformException {
+        // Nothing could be read from the cache.
+      }
+      if (cached != null && (cached.documents.isEmpty || serverDone)) {
+        cached = null;
+      }
+      if (cached != null) yield cached;
+      final QuerySnapshot result = await server;
+      if (cached == null || !_sameDocuments(cached, result)) yield result;
+      return;
+    }
+    final EventChannel eventChannel = EventChannel(
+      'plugins.flutter.io/cloud_firestore/cacheThenServer/$handle',
+      Firestore.channel.codec,
+    );
+    yield* eventChannel
+        .receiveBroadcastStream()
+        .map((dynamic data) => QuerySnapshot._(data, firestore));
+  }
+
+  static bool _sameDocuments(QuerySnapshot a, QuerySnapshot b) {
+    if (a.documents.length != b.documents.length) return false;
+    for (int i = 0; i < a.documents.length; i++) {
+      if (a.documents[i]._path != b.documents[i]._path ||
+          !const DeepCollectionEquality()
+              .equals(a.documents[i].data, b.documents[i].data)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /// Fetch the documents for this query in chunks of at most [chunkSize]
+  /// documents.
+  ///
+  /// Unlike [getDocuments], the result set is not sent from the platform in a
+  /// single message, so memory use is bounded by the chunk size and the first
+  /// documents are available before the whole result has been transferred.
+  /// The stream closes after the last chunk. If [fields] is set, only the
+  /// listed fields of each document are returned, as described in
+  /// [snapshots].
+  Stream<List<DocumentSnapshot>> getDocumentsInChunks(
+      {int chunkSize = 100,
+      Source source = Source.serverAndCache,
+      List<String> fields}) async* {
+    assert(chunkSize != null && chunkSize > 0);
+    assert(source != null);
+    final Map<String, dynamic> arguments = <String, dynamic>{
+      'app': firestore.app.name,
+      'path': _path,
+      'isCollectionGroup': _isCollectionGroup,
+      'source': _getSourceString(source),
+      'chunkSize': chunkSize,
+    };
+    if (fields != null) arguments['fields'] = fields;
+    int handle;
+    try {
+      handle = await _invokeWithParameters<int>(
+          'Query#getDocumentsInChunks', arguments);
+    } on MissingPluginException {
+      // Platforms without a native implementation send the whole result at
+      // once; it is still delivered to the caller in chunks.
+      final List<DocumentSnapshot> documents =
+          (await getDocuments(source: source, fields: fields)).documents;
+      for (int start = 0; start < documents.length; start += chunkSize) {
+        yield documents.sublist(
+            start, math.min(start + chunkSize, documents.length));
+      }
+      return;
+    }
+    final EventChannel eventChannel = EventChannel(
+      'plugins.flutter.io/cloud_firestore/documents/$handle',
+      Firestore.channel.codec,
+    );
+    yield* eventChannel.receiveBroadcastStream().map((dynamic chunk) {
+      return List<DocumentSnapshot>.generate(chunk['documents'].length,
+          (int index) {
+        return DocumentSnapshot._(
+          chunk['paths'][index],
+          _asStringKeyedMap(chunk['documents'][index]),
+          _documentMetadata(chunk, 'metadataFlags', 'metadatas', index),
+          firestore,
+          _cursorToken(chunk, index),
+        );
+      });
+    });
+  }
+
   /// Obtains a CollectionReference corresponding to this query's location.
   CollectionReference reference() =>
       CollectionReference._(firestore, _pathComponents);
@@ -193,11 +408,7 @@ class Query {
     assert(!_parameters.containsKey('startAfterDocument'));
     assert(!_parameters.containsKey('startAtDocument'));
     return _copyWithParameters(<String, dynamic>{
-      'startAfterDocument': <String, dynamic>{
-        'id': documentSnapshot.documentID,
-        'path': documentSnapshot.reference.path,
-        'data': documentSnapshot.data
-      }
+      'startAfterDocument': _cursorDocument(documentSnapshot),
     });
   }
 
@@ -221,11 +432,7 @@ class Query {
     assert(!_parameters.containsKey('startAfterDocument'));
     assert(!_parameters.containsKey('startAtDocument'));
     return _copyWithParameters(<String, dynamic>{
-      'startAtDocument': <String, dynamic>{
-        'id': documentSnapshot.documentID,
-        'path': documentSnapshot.reference.path,
-        'data': documentSnapshot.data
-      },
+      'startAtDocument': _cursorDocument(documentSnapshot),
     });
   }
 
@@ -283,11 +490,7 @@ class Query {
     assert(!_parameters.containsKey('endBeforeDocument'));
     assert(!_parameters.containsKey('endAtDocument'));
     return _copyWithParameters(<String, dynamic>{
-      'endAtDocument': <String, dynamic>{
-        'id': documentSnapshot.documentID,
-        'path': documentSnapshot.reference.path,
-        'data': documentSnapshot.data
-      },
+      'endAtDocument': _cursorDocument(documentSnapshot),
     });
   }
 
@@ -328,11 +531,7 @@ class Query {
     assert(!_parameters.containsKey('endBeforeDocument'));
     assert(!_parameters.containsKey('endAtDocument'));
     return _copyWithParameters(<String, dynamic>{
-      'endBeforeDocument': <String, dynamic>{
-        'id': documentSnapshot.documentID,
-        'path': documentSnapshot.reference.path,
-        'data': documentSnapshot.data,
-      },
+      'endBeforeDocument': _cursorDocument(documentSnapshot),
     });
   }
 
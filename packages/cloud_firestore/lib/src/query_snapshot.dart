@@ -12,11 +12,9 @@ class QuerySnapshot {
           return DocumentSnapshot._(
             data['paths'][index],
             _asStringKeyedMap(data['documents'][index]),
-            SnapshotMetadata._(
-              data['metadatas'][index]['hasPendingWrites'],
-              data['metadatas'][index]['isFromCache'],
-            ),
+            _documentMetadata(data, 'metadataFlags', 'metadatas', index),
             _firestore,
+            _cursorToken(data, index),
           );
         }),
         documentChanges = List<DocumentChange>.generate(
@@ -24,6 +22,7 @@ class QuerySnapshot {
           return DocumentChange._(
             data['documentChanges'][index],
             _firestore,
+            _changeMetadata(data, index),
           );
         }),
         metadata = SnapshotMetadata._(
@@ -31,6 +30,50 @@ class QuerySnapshot {
           data['metadata']['isFromCache'],
         );
 
+  /// Builds the next snapshot of a delta listener by applying the document
+  /// changes in [data] to the documents of [previous], in order.
+  factory QuerySnapshot._applyDelta(
+      QuerySnapshot previous, Map<dynamic, dynamic> data, Firestore firestore) {
+    final List<DocumentSnapshot> documents =
+        List<DocumentSnapshot>.from(previous.documents);
+    final List<DocumentChange> documentChanges = <DocumentChange>[];
+    for (int index = 0; index < data['documentChanges'].length; index++) {
+      final Map<dynamic, dynamic> change = data['documentChanges'][index];
+      final DocumentChangeType type = _parseDocumentChangeType(change['type']);
+      final int oldIndex = change['oldIndex'];
+      final int newIndex = change['newIndex'];
+      DocumentSnapshot document;
+      if (oldIndex >= 0) {
+        document = documents.removeAt(oldIndex);
+      }
+      if (type != DocumentChangeType.removed) {
+        document = DocumentSnapshot._(
+          change['path'],
+          _asStringKeyedMap(change['document']),
+          _changeMetadata(data, index) ??
+              SnapshotMetadata._(change['metadata']['hasPendingWrites'],
+                  change['metadata']['isFromCache']),
+          firestore,
+        );
+        documents.insert(newIndex, document);
+      }
+      documentChanges.add(
+          DocumentChange._fromParts(type, oldIndex, newIndex, document, firestore));
+    }
+    return QuerySnapshot._fromParts(
+      documents,
+      documentChanges,
+      SnapshotMetadata._(
+        data['metadata']['hasPendingWrites'],
+        data['metadata']['isFromCache'],
+      ),
+      firestore,
+    );
+  }
+
+  QuerySnapshot._fromParts(
+      this.documents, this.documentChanges, this.metadata, this._firestore);
+
   /// Gets a list of all the documents included in this snapshot
   final List<DocumentSnapshot> documents;
 
@@ -42,3 +85,17 @@ class QuerySnapshot {
 
   final Firestore _firestore;
 }
+
+/// Returns the metadata of the document of the change at [index] in [data],
+/// or null if the platform sent it within the change itself.
+SnapshotMetadata _changeMetadata(Map<dynamic, dynamic> data, int index) {
+  if (data['documentChangeMetadataFlags'] == null) return null;
+  return _documentMetadata(data, 'documentChangeMetadataFlags', null, index);
+}
+
+/// Returns the cursor token of the document at [index] in [data], or null if
+/// the platform sent none. Documents without a token have -1.
+int _cursorToken(Map<dynamic, dynamic> data, int index) {
+  final List<int> tokens = data['cursorTokens'];
+  return tokens == null || tokens[index] < 0 ? null : tokens[index];
+}
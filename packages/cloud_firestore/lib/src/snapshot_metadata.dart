@@ -26,3 +26,25 @@ class SnapshotMetadata {
   /// up-to-date data from the backend.
   final bool isFromCache;
 }
+
+/// Bits of the metadata flags that Android sends for each document of a
+/// snapshot, in a byte array aligned with its documents.
+const int _kHasPendingWritesFlag = 1;
+const int _kIsFromCacheFlag = 2;
+
+/// Returns the metadata of the document at [index] in [data], read either from
+/// the byte array of flags in [flagsKey] or from the list of maps in
+/// [mapsKey], whichever the platform sent.
+SnapshotMetadata _documentMetadata(
+    Map<dynamic, dynamic> data, String flagsKey, String mapsKey, int index) {
+  final List<int> flags = data[flagsKey];
+  if (flags != null) {
+    return SnapshotMetadata._(
+      (flags[index] & _kHasPendingWritesFlag) != 0,
+      (flags[index] & _kIsFromCacheFlag) != 0,
+    );
+  }
+  final Map<dynamic, dynamic> metadata = data[mapsKey][index];
+  return SnapshotMetadata._(
+      metadata['hasPendingWrites'], metadata['isFromCache']);
+}
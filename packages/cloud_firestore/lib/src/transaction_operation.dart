@@ -0,0 +1,114 @@
+// Copyright 2019, the Chromium project authors.  Please see the AUTHORS file
+// for details. All rights reserved. Use of this source code is governed by a
+// BSD-style license that can be found in the LICENSE file.
+
+part of cloud_firestore;
+
+/// A read-modify-write step of a transaction run by
+/// [Firestore.runTransactionOperations].
+///
+/// Every operation may be guarded by preconditions on the document at its
+/// path: [exists] requires the document to exist (`true`) or not to exist
+/// (`false`), and `fieldsEqual` maps dotted field paths to the values they
+/// must hold. Preconditions are checked against the state left by the
+/// operations before it in the same transaction.
+class TransactionOperation {
+  TransactionOperation._(this._type, this.document,
+      {this.exists,
+      Map<String, dynamic> fieldsEqual,
+      Map<String, dynamic> data,
+      bool merge,
+      Map<String, num> increments,
+      Map<String, num> minimum,
+      Map<String, num> maximum,
+      DocumentReference to,
+      bool overwrite})
+      : _fieldsEqual = fieldsEqual,
+        _data = data,
+        _merge = merge,
+        _increments = increments,
+        _minimum = minimum,
+        _maximum = maximum,
+        _to = to,
+        _overwrite = overwrite;
+
+  /// Writes [data] to [document], merging it into the existing data if
+  /// [merge] is true.
+  TransactionOperation.set(
+      DocumentReference document, Map<String, dynamic> data,
+      {bool merge = false, bool exists, Map<String, dynamic> fieldsEqual})
+      : this._('set', document,
+            data: data, merge: merge, exists: exists, fieldsEqual: fieldsEqual);
+
+  /// Updates the fields of [document] in [data]. Fails if the document does
+  /// not exist.
+  TransactionOperation.update(
+      DocumentReference document, Map<String, dynamic> data,
+      {Map<String, dynamic> fieldsEqual})
+      : this._('update', document, data: data, fieldsEqual: fieldsEqual);
+
+  /// Deletes [document].
+  TransactionOperation.delete(DocumentReference document,
+      {bool exists, Map<String, dynamic> fieldsEqual})
+      : this._('delete', document, exists: exists, fieldsEqual: fieldsEqual);
+
+  /// Adds the numbers in [increments] to the fields of [document], keyed by
+  /// dotted field path. Missing fields count as zero and a missing document
+  /// is created.
+  ///
+  /// Fails if a resulting value would be lower than its entry in [minimum] or
+  /// higher than its entry in [maximum].
+  TransactionOperation.increment(
+      DocumentReference document, Map<String, num> increments,
+      {Map<String, num> minimum,
+      Map<String, num> maximum,
+      bool exists,
+      Map<String, dynamic> fieldsEqual})
+      : this._('increment', document,
+            increments: increments,
+            minimum: minimum,
+            maximum: maximum,
+            exists: exists,
+            fieldsEqual: fieldsEqual);
+
+  /// Copies the data of [document] to [to] and deletes [document]. Fails if
+  /// [document] does not exist, or if [to] exists and [overwrite] is false.
+  TransactionOperation.move(DocumentReference document, DocumentReference to,
+      {bool overwrite = false, Map<String, dynamic> fieldsEqual})
+      : this._('move', document,
+            to: to, overwrite: overwrite, fieldsEqual: fieldsEqual);
+
+  final String _type;
+
+  /// The document this operation reads and writes.
+  final DocumentReference document;
+
+  /// Whether [document] must exist, or must not exist; null if either will do.
+  final bool exists;
+
+  final Map<String, dynamic> _fieldsEqual;
+  final Map<String, dynamic> _data;
+  final bool _merge;
+  final Map<String, num> _increments;
+  final Map<String, num> _minimum;
+  final Map<String, num> _maximum;
+  final DocumentReference _to;
+  final bool _overwrite;
+
+  Map<String, dynamic> _toMap() {
+    final Map<String, dynamic> operation = <String, dynamic>{
+      'type': _type,
+      'path': document.path,
+    };
+    if (exists != null) operation['exists'] = exists;
+    if (_fieldsEqual != null) operation['fieldsEqual'] = _fieldsEqual;
+    if (_data != null) operation['data'] = _data;
+    if (_merge == true) operation['merge'] = true;
+    if (_increments != null) operation['increments'] = _increments;
+    if (_minimum != null) operation['minimum'] = _minimum;
+    if (_maximum != null) operation['maximum'] = _maximum;
+    if (_to != null) operation['toPath'] = _to.path;
+    if (_overwrite == true) operation['overwrite'] = true;
+    return operation;
+  }
+}
@@ -3,10 +3,12 @@
 // found in the LICENSE file.
 
 import 'dart:async';
+import 'dart:convert';
 import 'dart:typed_data';
 
 import 'package:cloud_firestore/cloud_firestore.dart';
 import 'package:firebase_core/firebase_core.dart';
+import 'package:flutter/foundation.dart' show WriteBuffer;
 import 'package:flutter/services.dart';
 import 'package:flutter_test/flutter_test.dart';
 
@@ -102,6 +104,24 @@ void main() {
             });
             return handle;
           case 'Query#getDocuments':
+            if (methodCall.arguments['path'] == 'pages') {
+              final Map<dynamic, dynamic> cursor =
+                  methodCall.arguments['parameters']['startAfterDocument'];
+              if (cursor != null && !cursor.containsKey('data')) {
+                throw PlatformException(code: 'cursor-expired');
+              }
+              return <String, dynamic>{
+                'paths': <String>['pages/0', 'pages/1'],
+                'documents': <dynamic>[
+                  kMockDocumentSnapshotData,
+                  kMockDocumentSnapshotData,
+                ],
+                'metadataFlags': Uint8List(2),
+                'cursorTokens': Int32List.fromList(<int>[-1, 7]),
+                'metadata': kMockSnapshotMetadata,
+                'documentChanges': <dynamic>[],
+              };
+            }
             return <String, dynamic>{
               'paths': <String>["${methodCall.arguments['path']}/0"],
               'documents': <dynamic>[kMockDocumentSnapshotData],
@@ -117,6 +137,58 @@ void main() {
                 },
               ],
             };
+          case 'Query#getDocumentsInChunks':
+            final int handle = mockHandleId++;
+            final String name =
+                'plugins.flutter.io/cloud_firestore/documents/$handle';
+            // ignore: deprecated_member_use
+            BinaryMessages.setMockMessageHandler(name,
+                (ByteData message) async {
+              final MethodCall call =
+                  Firestore.channel.codec.decodeMethodCall(message);
+              if (call.method == 'listen') {
+                for (int i = 0; i < 2; i++) {
+                  // ignore: deprecated_member_use
+                  await BinaryMessages.handlePlatformMessage(
+                    name,
+                    Firestore.channel.codec
+                        .encodeSuccessEnvelope(<String, dynamic>{
+                      'paths': <String>["${methodCall.arguments['path']}/$i"],
+                      'documents': <dynamic>[kMockDocumentSnapshotData],
+                      'metadatas': <Map<String, dynamic>>[
+                        kMockSnapshotMetadata
+                      ],
+                      'metadata': kMockSnapshotMetadata,
+                    }),
+                    (_) {},
+                  );
+                }
+                // ignore: deprecated_member_use
+                await BinaryMessages.handlePlatformMessage(
+                    name, null, (_) {});
+              }
+              return Firestore.channel.codec.encodeSuccessEnvelope(null);
+            });
+            return handle;
+          case 'Firestore#importFile':
+            return mockHandleId++;
+          case 'DocumentReference#getCacheThenServer':
+          case 'Query#getDocumentsCacheThenServer':
+            return mockHandleId++;
+          case 'Firestore#runTransactionOperations':
+            if (methodCall.arguments['operations'][0]['path'] ==
+                'accounts/closed') {
+              throw PlatformException(
+                code: 'FAILED_PRECONDITION',
+                message: 'Operation 0: status of accounts/closed differs',
+              );
+            }
+            return <String, dynamic>{
+              'results': <dynamic>[
+                null,
+                <String, dynamic>{'balance': 90},
+              ],
+            };
           case 'DocumentReference#setData':
             return true;
           case 'DocumentReference#get':
@@ -134,6 +206,25 @@ void main() {
               };
             }
             throw PlatformException(code: 'UNKNOWN_PATH');
+          case 'Firestore#getPluginMetrics':
+            return <String, dynamic>{};
+          case 'Firestore#getQueryCacheMetrics':
+            return <String, dynamic>{};
+          case 'Firestore#getAll':
+            return <dynamic>[
+              <String, dynamic>{
+                'path': 'foo/bar',
+                'data': <String, dynamic>{'key1': 'val1'},
+                'metadata': kMockSnapshotMetadata,
+              },
+              <String, dynamic>{
+                'path': 'foo/denied',
+                'error': <String, dynamic>{
+                  'code': 'PERMISSION_DENIED',
+                  'message': 'Missing or insufficient permissions.',
+                },
+              },
+            ];
           case 'Firestore#runTransaction':
             return <String, dynamic>{'1': 3};
           case 'Transaction#get':
@@ -172,6 +263,21 @@ void main() {
       expect(firestore, equals(Firestore(app: app)));
     });
 
+    test('setAutoBatchWindow', () async {
+      await firestore.setAutoBatchWindow(const Duration(milliseconds: 20));
+      await firestore.setAutoBatchWindow(null);
+      expect(log, <Matcher>[
+        isMethodCall(
+          'Firestore#setAutoBatchWindow',
+          arguments: <String, dynamic>{'app': app.name, 'windowMillis': 20},
+        ),
+        isMethodCall(
+          'Firestore#setAutoBatchWindow',
+          arguments: <String, dynamic>{'app': app.name, 'windowMillis': 0},
+        ),
+      ]);
+    });
+
     test('settings', () async {
       final FirebaseApp app = const FirebaseApp(name: "testApp2");
       final Firestore firestoreWithSettings = Firestore(app: app);
@@ -194,6 +300,179 @@ void main() {
       ]);
     });
 
+    test('getPluginMetrics', () async {
+      await Firestore.getPluginMetrics();
+      await Firestore.resetPluginMetrics();
+      expect(log, <Matcher>[
+        isMethodCall('Firestore#getPluginMetrics', arguments: null),
+        isMethodCall('Firestore#resetPluginMetrics', arguments: null),
+      ]);
+    });
+
+    test('pluginMetrics', () async {
+      const String name = 'plugins.flutter.io/cloud_firestore/metrics';
+      final List<MethodCall> calls = <MethodCall>[];
+      // ignore: deprecated_member_use
+      BinaryMessages.setMockMessageHandler(name, (ByteData message) async {
+        final MethodCall call =
+            Firestore.channel.codec.decodeMethodCall(message);
+        calls.add(call);
+        if (call.method == 'listen') {
+          // ignore: deprecated_member_use
+          await BinaryMessages.handlePlatformMessage(
+            name,
+            Firestore.channel.codec.encodeSuccessEnvelope(<String, dynamic>{
+              'methods': <String, dynamic>{},
+              'emissions': <String, dynamic>{},
+            }),
+            (_) {},
+          );
+        }
+        return Firestore.channel.codec.encodeSuccessEnvelope(null);
+      });
+      await Firestore.pluginMetrics(interval: const Duration(seconds: 5)).first;
+      await Firestore.pluginMetrics().first;
+      final List<MethodCall> listens =
+          calls.where((MethodCall call) => call.method == 'listen').toList();
+      expect(listens, hasLength(2));
+      expect(listens[0].arguments, <String, dynamic>{'intervalMillis': 5000});
+      expect(listens[1].arguments, <String, dynamic>{'intervalMillis': 10000});
+    });
+
+    test('runTransactionOperations', () async {
+      final List<Map<String, dynamic>> results =
+          await firestore.runTransactionOperations(<TransactionOperation>[
+        TransactionOperation.move(
+          firestore.document('inbox/1'),
+          firestore.document('archive/1'),
+        ),
+        TransactionOperation.increment(
+          firestore.document('accounts/alice'),
+          <String, num>{'balance': -10},
+          minimum: <String, num>{'balance': 0},
+          fieldsEqual: <String, dynamic>{'status': 'open'},
+        ),
+      ]);
+      expect(results, <dynamic>[
+        null,
+        <String, dynamic>{'balance': 90},
+      ]);
+      expect(log, <Matcher>[
+        isMethodCall(
+          'Firestore#runTransactionOperations',
+          arguments: <String, dynamic>{
+            'app': app.name,
+            'operations': <dynamic>[
+              <String, dynamic>{
+                'type': 'move',
+                'path': 'inbox/1',
+                'toPath': 'archive/1',
+              },
+              <String, dynamic>{
+                'type': 'increment',
+                'path': 'accounts/alice',
+                'fieldsEqual': <String, dynamic>{'status': 'open'},
+                'increments': <String, num>{'balance': -10},
+                'minimum': <String, num>{'balance': 0},
+              },
+            ],
+          },
+        ),
+      ]);
+    });
+
+    test('runTransactionOperations with failed precondition', () async {
+      PlatformException error;
+      try {
+        await firestore.runTransactionOperations(<TransactionOperation>[
+          TransactionOperation.update(
+            firestore.document('accounts/closed'),
+            <String, dynamic>{'balance': 0},
+            fieldsEqual: <String, dynamic>{'status': 'open'},
+          ),
+        ]);
+      } on PlatformException catch (e) {
+        error = e;
+      }
+      expect(error, isNotNull);
+      expect(error.code, 'FAILED_PRECONDITION');
+    });
+
+    test('importFile', () async {
+      const String name = 'plugins.flutter.io/cloud_firestore/import/0';
+      // ignore: deprecated_member_use
+      BinaryMessages.setMockMessageHandler(name, (ByteData message) async {
+        final MethodCall call =
+            Firestore.channel.codec.decodeMethodCall(message);
+        if (call.method == 'listen') {
+          for (int i = 1; i <= 2; i++) {
+            // ignore: deprecated_member_use
+            await BinaryMessages.handlePlatformMessage(
+              name,
+              Firestore.channel.codec.encodeSuccessEnvelope(<String, dynamic>{
+                'documentsWritten': i * 2,
+                'batchesCommitted': i,
+                'bytesRead': i * 100,
+                'totalBytes': 200,
+              }),
+              (_) {},
+            );
+          }
+          // ignore: deprecated_member_use
+          await BinaryMessages.handlePlatformMessage(name, null, (_) {});
+        }
+        return Firestore.channel.codec.encodeSuccessEnvelope(null);
+      });
+      final List<ImportProgress> progress = await firestore
+          .importFile('/data/users.ndjson', batchSize: 2, maxInFlight: 1)
+          .toList();
+      expect(progress, hasLength(2));
+      expect(progress.last.documentsWritten, 4);
+      expect(progress.last.batchesCommitted, 2);
+      expect(progress.last.bytesRead, progress.last.totalBytes);
+      expect(log, <Matcher>[
+        isMethodCall(
+          'Firestore#importFile',
+          arguments: <String, dynamic>{
+            'app': app.name,
+            'filePath': '/data/users.ndjson',
+            'batchSize': 2,
+            'maxInFlight': 1,
+          },
+        ),
+      ]);
+    });
+
+    test('getQueryCacheMetrics', () async {
+      await Firestore.getQueryCacheMetrics();
+      expect(log, <Matcher>[
+        isMethodCall('Firestore#getQueryCacheMetrics', arguments: null),
+      ]);
+    });
+
+    test('getAll', () async {
+      final List<DocumentReadResult> results = await firestore.getAll(
+        <DocumentReference>[
+          firestore.document('foo/bar'),
+          firestore.document('foo/denied'),
+        ],
+        source: Source.cache,
+      );
+      expect(log, <Matcher>[
+        isMethodCall('Firestore#getAll', arguments: <String, dynamic>{
+          'app': app.name,
+          'paths': <String>['foo/bar', 'foo/denied'],
+          'source': 'cache',
+        }),
+      ]);
+      expect(results, hasLength(2));
+      expect(results[0].isSuccessful, isTrue);
+      expect(results[0].snapshot.data, <String, dynamic>{'key1': 'val1'});
+      expect(results[1].isSuccessful, isFalse);
+      expect(results[1].reference.path, 'foo/denied');
+      expect(results[1].error.code, 'PERMISSION_DENIED');
+    });
+
     group('Transaction', () {
       test('runTransaction', () async {
         final Map<String, dynamic> result = await firestore.runTransaction(
@@ -210,6 +489,18 @@ void main() {
         expect(result, equals(<String, dynamic>{'1': 3}));
       });
 
+      test('setTransactionPoolSize', () async {
+        await Firestore.setTransactionPoolSize(8);
+        try {
+          await Firestore.setTransactionPoolSize(0);
+          fail('setTransactionPoolSize(0) should have failed');
+        } on AssertionError catch (_) {}
+        expect(log, <Matcher>[
+          isMethodCall('Firestore#setTransactionPoolSize',
+              arguments: <String, dynamic>{'poolSize': 8}),
+        ]);
+      });
+
       test('get', () async {
         final DocumentReference documentReference =
             firestore.document('foo/bar');
@@ -359,6 +650,228 @@ void main() {
           ),
         ]);
       });
+      test('listen with backgroundSerialization', () async {
+        final QuerySnapshot snapshot = await collectionReference
+            .snapshots(backgroundSerialization: true)
+            .first;
+        expect(snapshot.documents.single.reference.path, equals('foo/0'));
+        await Future<void>.delayed(Duration.zero);
+        expect(
+          log.first,
+          isMethodCall(
+            'Query#addSnapshotListener',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'path': 'foo',
+              'isCollectionGroup': false,
+              'parameters': <String, dynamic>{
+                'where': <List<dynamic>>[],
+                'orderBy': <List<dynamic>>[],
+              },
+              'includeMetadataChanges': false,
+              'backgroundSerialization': true,
+            },
+          ),
+        );
+      });
+      test('listen deltaOnly', () async {
+        final List<QuerySnapshot> snapshots = <QuerySnapshot>[];
+        final StreamSubscription<QuerySnapshot> subscription =
+            collectionReference
+                .snapshots(deltaOnly: true)
+                .listen(snapshots.add);
+        await Future<void>.delayed(Duration.zero);
+        await Future<void>.delayed(Duration.zero);
+        expect(snapshots, hasLength(1));
+        // ignore: deprecated_member_use
+        await BinaryMessages.handlePlatformMessage(
+          Firestore.channel.name,
+          Firestore.channel.codec.encodeMethodCall(
+            MethodCall('QuerySnapshot', <String, dynamic>{
+              'handle': 0,
+              'isDelta': true,
+              'metadata': kMockSnapshotMetadata,
+              'documentChanges': <dynamic>[
+                <String, dynamic>{
+                  'oldIndex': -1,
+                  'newIndex': 0,
+                  'type': 'DocumentChangeType.added',
+                  'path': 'foo/1',
+                  'document': <String, dynamic>{'3': 4},
+                  'metadata': kMockSnapshotMetadata,
+                },
+                <String, dynamic>{
+                  'oldIndex': 1,
+                  'newIndex': -1,
+                  'type': 'DocumentChangeType.removed',
+                  'path': 'foo/0',
+                  'metadata': kMockSnapshotMetadata,
+                },
+              ],
+            }),
+          ),
+          (_) {},
+        );
+        expect(snapshots, hasLength(2));
+        final QuerySnapshot snapshot = snapshots.last;
+        expect(snapshot.documents, hasLength(1));
+        expect(snapshot.documents[0].reference.path, equals('foo/1'));
+        expect(snapshot.documents[0].data, equals(<String, dynamic>{'3': 4}));
+        expect(snapshot.documentChanges[1].type,
+            equals(DocumentChangeType.removed));
+        expect(snapshot.documentChanges[1].document.data,
+            equals(kMockDocumentSnapshotData));
+        subscription.cancel();
+        await Future<void>.delayed(Duration.zero);
+        expect(
+          log[0],
+          isMethodCall(
+            'Query#addSnapshotListener',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'path': 'foo',
+              'isCollectionGroup': false,
+              'parameters': <String, dynamic>{
+                'where': <List<dynamic>>[],
+                'orderBy': <List<dynamic>>[],
+              },
+              'includeMetadataChanges': false,
+              'deltaOnly': true,
+            },
+          ),
+        );
+      });
+      test('listen deltaOnly ignores removed handles', () async {
+        final List<QuerySnapshot> cancelledSnapshots = <QuerySnapshot>[];
+        final List<QuerySnapshot> snapshots = <QuerySnapshot>[];
+        final StreamSubscription<QuerySnapshot> cancelled =
+            collectionReference
+                .snapshots(deltaOnly: true)
+                .listen(cancelledSnapshots.add);
+        final StreamSubscription<QuerySnapshot> subscription =
+            collectionReference
+                .snapshots(deltaOnly: true)
+                .listen(snapshots.add);
+        await Future<void>.delayed(Duration.zero);
+        await Future<void>.delayed(Duration.zero);
+        expect(snapshots, hasLength(1));
+        cancelled.cancel();
+        await Future<void>.delayed(Duration.zero);
+        // ignore: deprecated_member_use
+        await BinaryMessages.handlePlatformMessage(
+          Firestore.channel.name,
+          Firestore.channel.codec.encodeMethodCall(
+            MethodCall('QuerySnapshot', <String, dynamic>{
+              'handles': <int>[0, 1],
+              'isDelta': true,
+              'metadata': kMockSnapshotMetadata,
+              'documentChanges': <dynamic>[
+                <String, dynamic>{
+                  'oldIndex': -1,
+                  'newIndex': 1,
+                  'type': 'DocumentChangeType.added',
+                  'path': 'foo/1',
+                  'document': <String, dynamic>{'3': 4},
+                  'metadata': kMockSnapshotMetadata,
+                },
+              ],
+            }),
+          ),
+          (_) {},
+        );
+        expect(cancelledSnapshots, hasLength(1));
+        expect(snapshots, hasLength(2));
+        expect(snapshots.last.documents, hasLength(2));
+        expect(snapshots.last.documents[1].reference.path, equals('foo/1'));
+        subscription.cancel();
+        await Future<void>.delayed(Duration.zero);
+        expect(
+          log,
+          contains(isMethodCall(
+            'removeListener',
+            arguments: <String, dynamic>{'handle': 0},
+          )),
+        );
+      });
+      test('listen with metadata flags', () async {
+        final List<QuerySnapshot> snapshots = <QuerySnapshot>[];
+        final StreamSubscription<QuerySnapshot> subscription =
+            collectionReference.snapshots().listen(snapshots.add);
+        await Future<void>.delayed(Duration.zero);
+        await Future<void>.delayed(Duration.zero);
+        // ignore: deprecated_member_use
+        await BinaryMessages.handlePlatformMessage(
+          Firestore.channel.name,
+          Firestore.channel.codec.encodeMethodCall(
+            MethodCall('QuerySnapshot', <String, dynamic>{
+              'handles': <int>[0],
+              'paths': <String>['foo/1', 'foo/2'],
+              'documents': <dynamic>[
+                <String, dynamic>{'1': 1},
+                <String, dynamic>{'2': 2},
+              ],
+              'metadataFlags': Uint8List.fromList(<int>[1, 2]),
+              'metadata': kMockSnapshotMetadata,
+              'documentChanges': <dynamic>[
+                <String, dynamic>{
+                  'oldIndex': -1,
+                  'newIndex': 1,
+                  'type': 'DocumentChangeType.added',
+                  'path': 'foo/2',
+                  'document': <String, dynamic>{'2': 2},
+                },
+              ],
+              'documentChangeMetadataFlags': Uint8List.fromList(<int>[3]),
+            }),
+          ),
+          (_) {},
+        );
+        final QuerySnapshot snapshot = snapshots.last;
+        expect(snapshot.documents[0].metadata.hasPendingWrites, isTrue);
+        expect(snapshot.documents[0].metadata.isFromCache, isFalse);
+        expect(snapshot.documents[1].metadata.hasPendingWrites, isFalse);
+        expect(snapshot.documents[1].metadata.isFromCache, isTrue);
+        final SnapshotMetadata changeMetadata =
+            snapshot.documentChanges.single.document.metadata;
+        expect(changeMetadata.hasPendingWrites, isTrue);
+        expect(changeMetadata.isFromCache, isTrue);
+        subscription.cancel();
+      });
+      test('listen with shared snapshot', () async {
+        final List<QuerySnapshot> first = <QuerySnapshot>[];
+        final List<QuerySnapshot> second = <QuerySnapshot>[];
+        final StreamSubscription<QuerySnapshot> firstSubscription =
+            collectionReference.snapshots().listen(first.add);
+        final StreamSubscription<QuerySnapshot> secondSubscription =
+            collectionReference.snapshots().listen(second.add);
+        await Future<void>.delayed(Duration.zero);
+        await Future<void>.delayed(Duration.zero);
+        expect(first, hasLength(1));
+        expect(second, hasLength(1));
+        // ignore: deprecated_member_use
+        await BinaryMessages.handlePlatformMessage(
+          Firestore.channel.name,
+          Firestore.channel.codec.encodeMethodCall(
+            MethodCall('QuerySnapshot', <String, dynamic>{
+              'handles': <int>[0, 1],
+              'paths': <String>['foo/1'],
+              'documents': <dynamic>[
+                <String, dynamic>{'3': 4}
+              ],
+              'metadatas': <Map<String, dynamic>>[kMockSnapshotMetadata],
+              'metadata': kMockSnapshotMetadata,
+              'documentChanges': <dynamic>[],
+            }),
+          ),
+          (_) {},
+        );
+        expect(first, hasLength(2));
+        expect(second, hasLength(2));
+        expect(first.last.documents[0].reference.path, equals('foo/1'));
+        expect(second.last.documents[0].data, equals(<String, dynamic>{'3': 4}));
+        firstSubscription.cancel();
+        secondSubscription.cancel();
+      });
       test('where', () async {
         final StreamSubscription<QuerySnapshot> subscription =
             collectionReference
@@ -489,6 +1002,25 @@ void main() {
           ],
         );
       });
+      test('listen with throttle', () async {
+        await firestore
+            .document('path/to/foo')
+            .snapshots(throttle: const Duration(milliseconds: 250))
+            .first;
+        await Future<void>.delayed(Duration.zero);
+        expect(
+          log.first,
+          isMethodCall(
+            'DocumentReference#addSnapshotListener',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'path': 'path/to/foo',
+              'includeMetadataChanges': false,
+              'throttleMillis': 250,
+            },
+          ),
+        );
+      });
       test('set', () async {
         await collectionReference
             .document('bar')
@@ -560,6 +1092,130 @@ void main() {
           ]),
         );
       });
+      test('getCacheThenServer', () async {
+        const String name =
+            'plugins.flutter.io/cloud_firestore/cacheThenServer/0';
+        // ignore: deprecated_member_use
+        BinaryMessages.setMockMessageHandler(name, (ByteData message) async {
+          final MethodCall call =
+              Firestore.channel.codec.decodeMethodCall(message);
+          if (call.method == 'listen') {
+            for (bool isFromCache in <bool>[true, false]) {
+              // ignore: deprecated_member_use
+              await BinaryMessages.handlePlatformMessage(
+                name,
+                Firestore.channel.codec
+                    .encodeSuccessEnvelope(<String, dynamic>{
+                  'path': 'foo/bar',
+                  'data': <String, dynamic>{'key1': 'val1'},
+                  'metadata': <String, dynamic>{
+                    'hasPendingWrites': false,
+                    'isFromCache': isFromCache,
+                  },
+                }),
+                (_) {},
+              );
+            }
+            // ignore: deprecated_member_use
+            await BinaryMessages.handlePlatformMessage(name, null, (_) {});
+          }
+          return Firestore.channel.codec.encodeSuccessEnvelope(null);
+        });
+        final List<DocumentSnapshot> snapshots = await firestore
+            .document('foo/bar')
+            .getCacheThenServer(fields: <String>['key1'])
+            .toList();
+        expect(snapshots, hasLength(2));
+        expect(snapshots[0].metadata.isFromCache, isTrue);
+        expect(snapshots[1].metadata.isFromCache, isFalse);
+        expect(snapshots[1].data, <String, dynamic>{'key1': 'val1'});
+        expect(log, <Matcher>[
+          isMethodCall(
+            'DocumentReference#getCacheThenServer',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'path': 'foo/bar',
+              'fields': <String>['key1'],
+            },
+          ),
+        ]);
+      });
+      test('getDocumentsCacheThenServer', () async {
+        const String name =
+            'plugins.flutter.io/cloud_firestore/cacheThenServer/0';
+        // ignore: deprecated_member_use
+        BinaryMessages.setMockMessageHandler(name, (ByteData message) async {
+          final MethodCall call =
+              Firestore.channel.codec.decodeMethodCall(message);
+          if (call.method == 'listen') {
+            for (bool isFromCache in <bool>[true, false]) {
+              // ignore: deprecated_member_use
+              await BinaryMessages.handlePlatformMessage(
+                name,
+                Firestore.channel.codec
+                    .encodeSuccessEnvelope(<String, dynamic>{
+                  'paths': <String>['foo/0'],
+                  'documents': <dynamic>[kMockDocumentSnapshotData],
+                  'metadataFlags':
+                      Uint8List.fromList(<int>[isFromCache ? 2 : 0]),
+                  'metadata': <String, dynamic>{
+                    'hasPendingWrites': false,
+                    'isFromCache': isFromCache,
+                  },
+                  'documentChanges': <dynamic>[],
+                }),
+                (_) {},
+              );
+            }
+            // ignore: deprecated_member_use
+            await BinaryMessages.handlePlatformMessage(name, null, (_) {});
+          }
+          return Firestore.channel.codec.encodeSuccessEnvelope(null);
+        });
+        final List<QuerySnapshot> snapshots = await collectionReference
+            .getDocumentsCacheThenServer(fields: <String>['key1'])
+            .toList();
+        expect(snapshots, hasLength(2));
+        expect(snapshots[0].metadata.isFromCache, isTrue);
+        expect(snapshots[0].documents.single.metadata.isFromCache, isTrue);
+        expect(snapshots[1].metadata.isFromCache, isFalse);
+        expect(snapshots[1].documents.single.data, kMockDocumentSnapshotData);
+        expect(log, <Matcher>[
+          isMethodCall(
+            'Query#getDocumentsCacheThenServer',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'path': 'foo',
+              'isCollectionGroup': false,
+              'parameters': <String, dynamic>{
+                'where': <List<dynamic>>[],
+                'orderBy': <List<dynamic>>[],
+              },
+              'fields': <String>['key1'],
+            },
+          ),
+        ]);
+      });
+      test('get with fields', () async {
+        await collectionReference
+            .document('bar')
+            .get(fields: <String>['key1', 'nested.key']);
+        expect(
+          log,
+          equals(<Matcher>[
+            isMethodCall(
+              'DocumentReference#get',
+              arguments: <String, dynamic>{
+                'app': app.name,
+                'path': 'foo/bar',
+                'source': 'default',
+                'fields': <String>['key1', 'nested.key'],
+              },
+            ),
+          ]),
+        );
+      });
+
       test('get', () async {
         final DocumentSnapshot snapshot =
             await collectionReference.document('bar').get(source: Source.cache);
@@ -793,6 +1449,116 @@ void main() {
           ),
         );
       });
+      test('getDocuments with fields', () async {
+        await collectionReference.getDocuments(fields: <String>['name']);
+        expect(
+          log,
+          equals(<Matcher>[
+            isMethodCall(
+              'Query#getDocuments',
+              arguments: <String, dynamic>{
+                'app': app.name,
+                'path': 'foo',
+                'isCollectionGroup': false,
+                'parameters': <String, dynamic>{
+                  'where': <List<dynamic>>[],
+                  'orderBy': <List<dynamic>>[],
+                },
+                'source': 'default',
+                'fields': <String>['name'],
+              },
+            ),
+          ]),
+        );
+      });
+      test('startAfterDocument with cursor token', () async {
+        final CollectionReference pages = firestore.collection('pages');
+        final QuerySnapshot snapshot = await pages.limit(2).getDocuments();
+        log.clear();
+        await pages.startAfterDocument(snapshot.documents.last).getDocuments();
+        final Map<String, dynamic> cursor = <String, dynamic>{
+          'id': '1',
+          'path': 'pages/1',
+          'cursorToken': 7,
+        };
+        Matcher getDocuments(Map<String, dynamic> cursor) {
+          return isMethodCall(
+            'Query#getDocuments',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'path': 'pages',
+              'isCollectionGroup': false,
+              'parameters': <String, dynamic>{
+                'where': <List<dynamic>>[],
+                'orderBy': <List<dynamic>>[],
+                'startAfterDocument': cursor,
+              },
+              'source': 'default',
+            },
+          );
+        }
+
+        // The token is not cached by the mock, so the call is repeated with
+        // the data of the document.
+        expect(log, <Matcher>[
+          getDocuments(cursor),
+          getDocuments(<String, dynamic>{
+            'data': kMockDocumentSnapshotData,
+          }..addAll(cursor)),
+        ]);
+      });
+      test('startAfterDocument without cursor token', () async {
+        final CollectionReference pages = firestore.collection('pages');
+        final QuerySnapshot snapshot = await pages.limit(2).getDocuments();
+        log.clear();
+        await pages.startAfterDocument(snapshot.documents.first).getDocuments();
+        expect(log, <Matcher>[
+          isMethodCall(
+            'Query#getDocuments',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'path': 'pages',
+              'isCollectionGroup': false,
+              'parameters': <String, dynamic>{
+                'where': <List<dynamic>>[],
+                'orderBy': <List<dynamic>>[],
+                'startAfterDocument': <String, dynamic>{
+                  'id': '0',
+                  'path': 'pages/0',
+                  'data': kMockDocumentSnapshotData,
+                },
+              },
+              'source': 'default',
+            },
+          ),
+        ]);
+      });
+      test('getDocumentsInChunks', () async {
+        final List<List<DocumentSnapshot>> chunks = await collectionReference
+            .getDocumentsInChunks(chunkSize: 1)
+            .toList();
+        expect(chunks, hasLength(2));
+        expect(chunks[0].single.reference.path, equals('foo/0'));
+        expect(chunks[1].single.reference.path, equals('foo/1'));
+        expect(chunks[1].single.data, equals(kMockDocumentSnapshotData));
+        expect(
+          log.first,
+          isMethodCall(
+            'Query#getDocumentsInChunks',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'path': 'foo',
+              'isCollectionGroup': false,
+              'parameters': <String, dynamic>{
+                'where': <List<dynamic>>[],
+                'orderBy': <List<dynamic>>[],
+              },
+              'source': 'default',
+              'chunkSize': 1,
+            },
+          ),
+        );
+      });
       test('getDocumentsFromCollectionGroup', () async {
         QuerySnapshot snapshot = await collectionGroupQuery.getDocuments();
         expect(snapshot.metadata.hasPendingWrites,
@@ -1002,6 +1768,64 @@ void main() {
         _checkEncodeDecode<dynamic>(codec, FieldValue.increment(1.0));
         _checkEncodeDecode<dynamic>(codec, FieldValue.increment(1));
       });
+
+      test('decode keyed maps', () {
+        const FirestoreMessageCodec firestoreCodec = FirestoreMessageCodec();
+        final WriteBuffer buffer = WriteBuffer();
+        void writeNewKey(int index, String key) {
+          firestoreCodec.writeSize(buffer, index);
+          final List<int> bytes = utf8.encoder.convert(key);
+          firestoreCodec.writeSize(buffer, bytes.length);
+          buffer.putUint8List(bytes);
+        }
+
+        // [{'ownerId': 'a', 'nested': {'ownerId': 'b'}}]
+        buffer.putUint8(12); // list
+        firestoreCodec.writeSize(buffer, 1);
+        buffer.putUint8(139); // keyed map
+        firestoreCodec.writeSize(buffer, 2);
+        writeNewKey(0, 'ownerId');
+        firestoreCodec.writeValue(buffer, 'a');
+        writeNewKey(1, 'nested');
+        buffer.putUint8(139);
+        firestoreCodec.writeSize(buffer, 1);
+        firestoreCodec.writeSize(buffer, 0); // 'ownerId'
+        firestoreCodec.writeValue(buffer, 'b');
+        expect(
+            firestoreCodec.decodeMessage(buffer.done()),
+            equals(<dynamic>[
+              <dynamic, dynamic>{
+                'ownerId': 'a',
+                'nested': <dynamic, dynamic>{'ownerId': 'b'},
+              },
+            ]));
+      });
+
+      test('decode keyed maps sharing keys across a list', () {
+        const FirestoreMessageCodec firestoreCodec = FirestoreMessageCodec();
+        final WriteBuffer buffer = WriteBuffer();
+
+        // [{'ownerId': 'a'}, {'ownerId': 'b'}]
+        buffer.putUint8(12); // list
+        firestoreCodec.writeSize(buffer, 2);
+        buffer.putUint8(139); // keyed map
+        firestoreCodec.writeSize(buffer, 1);
+        firestoreCodec.writeSize(buffer, 0);
+        final List<int> bytes = utf8.encoder.convert('ownerId');
+        firestoreCodec.writeSize(buffer, bytes.length);
+        buffer.putUint8List(bytes);
+        firestoreCodec.writeValue(buffer, 'a');
+        buffer.putUint8(139);
+        firestoreCodec.writeSize(buffer, 1);
+        firestoreCodec.writeSize(buffer, 0); // 'ownerId'
+        firestoreCodec.writeValue(buffer, 'b');
+        expect(
+            firestoreCodec.decodeMessage(buffer.done()),
+            equals(<dynamic>[
+              <dynamic, dynamic>{'ownerId': 'a'},
+              <dynamic, dynamic>{'ownerId': 'b'},
+            ]));
+      });
     });
 
     group('Timestamp', () {
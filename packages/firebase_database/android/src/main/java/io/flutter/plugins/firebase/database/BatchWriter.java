@@ -0,0 +1,194 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import io.flutter.plugin.common.MethodChannel.Result;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Issues an ordered list of {@code set}, {@code update} and {@code setPriority} operations and
+ * replies once with the result of each.
+ *
+ * <p>Consecutive sets without a priority and updates are merged into a single multi-path update of
+ * the root, as long as none of the paths they write is the same as, or an ancestor of, another.
+ * The merged update is issued when an operation cannot join it, so writes still reach the SDK in
+ * the order they were given. The operations of a merged update succeed or fail together.
+ *
+ * <p>The reply is a list with, for each operation, null or the error it failed with. An operation
+ * that the SDK rejects when it is issued, such as one with an invalid key or value, fails with
+ * {@link DatabaseError#UNKNOWN_ERROR} and the message of the rejection. Must be used from the main
+ * thread.
+ */
+class BatchWriter {
+  private final FirebaseDatabase database;
+  private final List<Map<String, Object>> operations;
+  private final Result result;
+  private final Object[] results;
+  private int pending;
+
+  // The merged update being built, and the indexes of the operations it holds.
+  private final Map<String, Object> update = new HashMap<>();
+  private final List<Integer> updateIndexes = new ArrayList<>();
+
+  BatchWriter(FirebaseDatabase database, List<Map<String, Object>> operations, Result result) {
+    this.database = database;
+    this.operations = operations;
+    this.result = result;
+    this.results = new Object[operations.size()];
+  }
+
+  @SuppressWarnings("unchecked")
+  void write() {
+    pending = operations.size();
+    if (pending == 0) {
+      result.success(new ArrayList<>());
+      return;
+    }
+    for (int i = 0; i < operations.size(); i++) {
+      Map<String, Object> operation = operations.get(i);
+      String type = (String) operation.get("type");
+      String path = normalize((String) operation.get("path"));
+      Object value = operation.get("value");
+      Object priority = operation.get("priority");
+
+      Map<String, Object> paths = null;
+      if ("set".equals(type) && priority == null && !path.isEmpty()) {
+        paths = new HashMap<>();
+        paths.put(path, value);
+      } else if ("update".equals(type) && !((Map<String, Object>) value).isEmpty()) {
+        paths = new HashMap<>();
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+          String key = normalize(entry.getKey());
+          paths.put(path.isEmpty() ? key : path + "/" + key, entry.getValue());
+        }
+      }
+      if (paths == null || overlaps(paths)) flushUpdate();
+      if (paths != null) {
+        update.putAll(paths);
+        updateIndexes.add(i);
+        continue;
+      }
+
+      issue(i);
+    }
+    flushUpdate();
+  }
+
+  /**
+   * Issues the operation at {@code index} on its own. An operation that the SDK rejects right away,
+   * such as one with an invalid key or value, fails without affecting the others.
+   */
+  @SuppressWarnings("unchecked")
+  private void issue(int index) {
+    Map<String, Object> operation = operations.get(index);
+    String type = (String) operation.get("type");
+    String path = normalize((String) operation.get("path"));
+    Object value = operation.get("value");
+    Object priority = operation.get("priority");
+    Listener listener = new Listener(Arrays.asList(index));
+    try {
+      DatabaseReference reference = database.getReference();
+      if (!path.isEmpty()) reference = reference.child(path);
+      switch (type) {
+        case "set":
+          if (priority != null) {
+            reference.setValue(value, priority, listener);
+          } else {
+            reference.setValue(value, listener);
+          }
+          break;
+        case "update":
+          reference.updateChildren((Map<String, Object>) value, listener);
+          break;
+        case "setPriority":
+          reference.setPriority(priority, listener);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown batch operation " + type);
+      }
+    } catch (DatabaseException | IllegalArgumentException e) {
+      Map<String, Object> error = new HashMap<>();
+      error.put("code", DatabaseError.UNKNOWN_ERROR);
+      error.put("message", e.getMessage());
+      error.put("details", null);
+      listener.complete(error);
+    }
+  }
+
+  /** Returns whether any of {@code paths} overlaps a path of the merged update. */
+  private boolean overlaps(Map<String, Object> paths) {
+    for (String path : paths.keySet()) {
+      for (String other : update.keySet()) {
+        if (isSameOrAncestor(path, other) || isSameOrAncestor(other, path)) return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Issues the merged update. If the SDK rejects it right away, its operations are issued one by
+   * one instead, so that only the invalid ones fail.
+   */
+  private void flushUpdate() {
+    if (updateIndexes.isEmpty()) return;
+    List<Integer> indexes = new ArrayList<>(updateIndexes);
+    Map<String, Object> paths = new HashMap<>(update);
+    update.clear();
+    updateIndexes.clear();
+    try {
+      database.getReference().updateChildren(paths, new Listener(indexes));
+    } catch (DatabaseException e) {
+      for (int index : indexes) {
+        issue(index);
+      }
+    }
+  }
+
+  private static boolean isSameOrAncestor(String ancestor, String path) {
+    return path.equals(ancestor) || path.startsWith(ancestor + "/");
+  }
+
+  /** Strips leading, trailing and repeated slashes, so that paths can be compared as strings. */
+  private static String normalize(String path) {
+    if (path == null) return "";
+    StringBuilder builder = new StringBuilder();
+    for (String part : path.split("/")) {
+      if (part.isEmpty()) continue;
+      if (builder.length() > 0) builder.append('/');
+      builder.append(part);
+    }
+    return builder.toString();
+  }
+
+  /** Records the outcome of one SDK write for the operations it carried. */
+  private class Listener implements DatabaseReference.CompletionListener {
+    private final List<Integer> indexes;
+
+    Listener(List<Integer> indexes) {
+      this.indexes = indexes;
+    }
+
+    @Override
+    public void onComplete(DatabaseError error, DatabaseReference ref) {
+      complete(error == null ? null : FirebaseDatabasePlugin.asMap(error));
+    }
+
+    void complete(Map<String, Object> error) {
+      for (int index : indexes) {
+        results[index] = error;
+      }
+      pending -= indexes.size();
+      if (pending == 0) result.success(Arrays.asList(results));
+    }
+  }
+}
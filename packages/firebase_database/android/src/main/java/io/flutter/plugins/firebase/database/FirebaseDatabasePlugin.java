@@ -6,7 +6,9 @@ package io.flutter.plugins.firebase.database;
 
 import android.app.Activity;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
+import android.view.Choreographer;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.android.gms.tasks.Tasks;
@@ -26,8 +28,11 @@ import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
 import io.flutter.plugin.common.PluginRegistry;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -36,6 +41,7 @@ import java.util.concurrent.TimeoutException;
 public class FirebaseDatabasePlugin implements MethodCallHandler {
 
   private static final String TAG = "FirebaseDatabasePlugin";
+  private static final int QUERY_CACHE_SIZE = 100;
 
   private final MethodChannel channel;
   private final Activity activity;
@@ -48,6 +54,8 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
   // Handles are ints used as indexes into the sparse array of active observers
   private int nextHandle = 0;
   private final SparseArray<EventObserver> observers = new SparseArray<>();
+  private final Map<String, QueryListener> queryListeners = new HashMap<>();
+  private final LruCache<String, Query> queryCache = new LruCache<>(QUERY_CACHE_SIZE);
 
   public static void registerWith(PluginRegistry.Registrar registrar) {
     final MethodChannel channel =
@@ -67,7 +75,20 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
     return reference;
   }
 
-  private Query getQuery(FirebaseDatabase database, Map<String, Object> arguments) {
+  /**
+   * Returns the query described by {@code arguments}, whose {@link #getQueryKey} is {@code key},
+   * reusing a previously built instance when the same query was requested before.
+   */
+  private Query getQuery(FirebaseDatabase database, Map<String, Object> arguments, String key) {
+    Query query = queryCache.get(key);
+    if (query == null) {
+      query = buildQuery(database, arguments);
+      queryCache.put(key, query);
+    }
+    return query;
+  }
+
+  private Query buildQuery(FirebaseDatabase database, Map<String, Object> arguments) {
     Query query = getReference(database, arguments);
     @SuppressWarnings("unchecked")
     Map<String, Object> parameters = (Map<String, Object>) arguments.get("parameters");
@@ -154,6 +175,34 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
     return query;
   }
 
+  /**
+   * Returns a key that is equal for the arguments of queries that select the same data. Parameter
+   * values are tagged with their type, so that for example 1 and "1" give different keys, while 1
+   * and 1.0 give the same key.
+   */
+  private static String getQueryKey(Map<String, Object> arguments) {
+    StringBuilder key = new StringBuilder();
+    key.append(arguments.get("app")).append('|');
+    key.append(arguments.get("databaseURL")).append('|');
+    key.append(arguments.get("path")).append('|');
+    @SuppressWarnings("unchecked")
+    Map<String, Object> parameters = (Map<String, Object>) arguments.get("parameters");
+    if (parameters != null) {
+      for (Map.Entry<String, Object> entry : new TreeMap<>(parameters).entrySet()) {
+        Object value = entry.getValue();
+        key.append(entry.getKey()).append('=');
+        if (value instanceof Number) {
+          // Queries convert all numbers to doubles.
+          key.append("Number:").append(((Number) value).doubleValue());
+        } else {
+          key.append(value == null ? "null" : value.getClass().getSimpleName() + ":" + value);
+        }
+        key.append(';');
+      }
+    }
+    return key.toString();
+  }
+
   private class DefaultCompletionListener implements DatabaseReference.CompletionListener {
     private final Result result;
 
@@ -171,13 +220,179 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
     }
   }
 
-  private class EventObserver implements ChildEventListener, ValueEventListener {
+  /**
+   * The SDK listener shared by all observer handles of the same query. A child listener is
+   * registered while at least one handle observes a child event type, and a value listener while at
+   * least one handle observes values. Each event is dispatched to the handles that requested its
+   * type, and the cancellation of either listener only to the handles it serves.
+   */
+  private class QueryListener {
+    private final String key;
+    private final Query query;
+    private final List<EventObserver> observers = new ArrayList<>();
+    private int childObserverCount = 0;
+    private int valueObserverCount = 0;
+
+    private final ChildEventListener childListener =
+        new ChildEventListener() {
+          @Override
+          public void onChildAdded(DataSnapshot snapshot, String previousChildName) {
+            dispatch(EVENT_TYPE_CHILD_ADDED, snapshot, previousChildName);
+          }
+
+          @Override
+          public void onChildRemoved(DataSnapshot snapshot) {
+            dispatch(EVENT_TYPE_CHILD_REMOVED, snapshot, null);
+          }
+
+          @Override
+          public void onChildChanged(DataSnapshot snapshot, String previousChildName) {
+            dispatch(EVENT_TYPE_CHILD_CHANGED, snapshot, previousChildName);
+          }
+
+          @Override
+          public void onChildMoved(DataSnapshot snapshot, String previousChildName) {
+            dispatch(EVENT_TYPE_CHILD_MOVED, snapshot, previousChildName);
+          }
+
+          @Override
+          public void onCancelled(DatabaseError error) {
+            cancelled(error, false);
+          }
+        };
+
+    private final ValueEventListener valueListener =
+        new ValueEventListener() {
+          @Override
+          public void onDataChange(DataSnapshot snapshot) {
+            dispatch(EVENT_TYPE_VALUE, snapshot, null);
+          }
+
+          @Override
+          public void onCancelled(DatabaseError error) {
+            cancelled(error, true);
+          }
+        };
+
+    QueryListener(String key, Query query) {
+      this.key = key;
+      this.query = query;
+    }
+
+    void addObserver(final EventObserver observer) {
+      observers.add(observer);
+      observer.listener = this;
+      boolean registered;
+      if (observer.isValueObserver()) {
+        registered = valueObserverCount++ > 0;
+        if (!registered) query.addValueEventListener(valueListener);
+      } else {
+        registered = childObserverCount++ > 0;
+        if (!registered) query.addChildEventListener(childListener);
+      }
+      if (!registered) return;
+      // The SDK only reports the current data to newly registered listeners. A handle that joins an
+      // existing listener is sent it from a single value read instead, and receives no events from
+      // the shared listener until then.
+      observer.caughtUp = false;
+      query.addListenerForSingleValueEvent(
+          new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+              if (observer.listener == null) return;
+              observer.caughtUp = true;
+              if (observer.isValueObserver()) {
+                observer.sendEvent(EVENT_TYPE_VALUE, snapshot, null);
+              } else {
+                String previousChildName = null;
+                for (DataSnapshot child : snapshot.getChildren()) {
+                  observer.sendEvent(EVENT_TYPE_CHILD_ADDED, child, previousChildName);
+                  previousChildName = child.getKey();
+                }
+              }
+            }
+
+            @Override
+            public void onCancelled(DatabaseError error) {
+              if (observer.listener == null) return;
+              observer.caughtUp = true;
+              observer.onCancelled(error);
+            }
+          });
+    }
+
+    /** Removes the observer and returns true if no observers are left. */
+    boolean removeObserver(EventObserver observer) {
+      observers.remove(observer);
+      observer.listener = null;
+      if (observer.isValueObserver()) {
+        if (--valueObserverCount == 0) query.removeEventListener(valueListener);
+      } else {
+        if (--childObserverCount == 0) query.removeEventListener(childListener);
+      }
+      return observers.isEmpty();
+    }
+
+    private void dispatch(String eventType, DataSnapshot snapshot, String previousChildName) {
+      for (EventObserver observer : observers) {
+        if (observer.caughtUp) observer.sendEvent(eventType, snapshot, previousChildName);
+      }
+    }
+
+    /** Forwards the cancellation of the value or the child listener to the handles it serves. */
+    private void cancelled(DatabaseError error, boolean valueListenerCancelled) {
+      // The SDK removes cancelled listeners, so later handles of this query register a new one.
+      if (queryListeners.get(key) == this) queryListeners.remove(key);
+      for (EventObserver observer : new ArrayList<>(observers)) {
+        if (observer.isValueObserver() == valueListenerCancelled) observer.onCancelled(error);
+      }
+    }
+  }
+
+  /**
+   * Sends the events of one observer handle to Dart.
+   *
+   * <p>If {@code maxBatchSize} is positive, events are queued and sent together in a single
+   * "Events" message, in the order they occurred. The queue is flushed on the next frame, or as
+   * soon as it holds {@code maxBatchSize} events. Otherwise each event is sent in its own "Event"
+   * message.
+   *
+   * <p>Snapshot values are materialized down to {@code maxDepth} levels, as described in {@link
+   * SnapshotValues#getValue}.
+   */
+  private class EventObserver implements Choreographer.FrameCallback {
     private String requestedEventType;
     private int handle;
-
-    EventObserver(String requestedEventType, int handle) {
+    private final int maxBatchSize;
+    private final int maxDepth;
+    private final boolean shallow;
+    // Values are sent as patches, with the full value every resyncEvery events, if above zero.
+    private final int resyncEvery;
+    private Object lastValue;
+    private int eventsSinceResync = 0;
+    private final List<Map<String, Object>> pendingEvents = new ArrayList<>();
+    private boolean flushScheduled = false;
+    // The listener this observer receives events from, or null once it has been removed.
+    private QueryListener listener;
+    private boolean caughtUp = true;
+
+    EventObserver(
+        String requestedEventType,
+        int handle,
+        int maxBatchSize,
+        int maxDepth,
+        boolean shallow,
+        int resyncEvery) {
       this.requestedEventType = requestedEventType;
       this.handle = handle;
+      this.maxBatchSize = maxBatchSize;
+      this.maxDepth = maxDepth;
+      this.shallow = shallow;
+      this.resyncEvery = isValueObserver() ? resyncEvery : 0;
+    }
+
+    boolean isValueObserver() {
+      return requestedEventType.equals(EVENT_TYPE_VALUE);
     }
 
     private void sendEvent(String eventType, DataSnapshot snapshot, String previousChildName) {
@@ -185,45 +400,80 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
         Map<String, Object> arguments = new HashMap<>();
         Map<String, Object> snapshotMap = new HashMap<>();
         snapshotMap.put("key", snapshot.getKey());
-        snapshotMap.put("value", snapshot.getValue());
-        arguments.put("handle", handle);
+        Object value = SnapshotValues.getValue(snapshot, maxDepth, shallow);
+        if (resyncEvery > 0) {
+          putValueOrPatch(snapshotMap, value);
+        } else {
+          snapshotMap.put("value", value);
+        }
         arguments.put("snapshot", snapshotMap);
         arguments.put("previousSiblingKey", previousChildName);
-        channel.invokeMethod("Event", arguments);
+        if (maxBatchSize <= 0) {
+          arguments.put("handle", handle);
+          channel.invokeMethod("Event", arguments);
+          return;
+        }
+        pendingEvents.add(arguments);
+        if (pendingEvents.size() >= maxBatchSize) {
+          flush();
+        } else if (!flushScheduled) {
+          flushScheduled = true;
+          Choreographer.getInstance().postFrameCallback(this);
+        }
       }
     }
 
-    @Override
-    public void onCancelled(DatabaseError error) {
-      Map<String, Object> arguments = new HashMap<>();
-      arguments.put("handle", handle);
-      arguments.put("error", asMap(error));
-      channel.invokeMethod("Error", arguments);
-    }
-
-    @Override
-    public void onChildAdded(DataSnapshot snapshot, String previousChildName) {
-      sendEvent(EVENT_TYPE_CHILD_ADDED, snapshot, previousChildName);
+    /**
+     * Puts a patch against the last value sent into {@code snapshotMap}, or the full value for the
+     * first event, every {@code resyncEvery} events, and when the root value itself changed.
+     */
+    private void putValueOrPatch(Map<String, Object> snapshotMap, Object value) {
+      Map<String, Object> patch = null;
+      if (eventsSinceResync > 0 && eventsSinceResync < resyncEvery) {
+        patch = ValueDiffs.diff(lastValue, value);
+      }
+      lastValue = value;
+      if (patch == null) {
+        snapshotMap.put("value", value);
+        eventsSinceResync = 1;
+      } else {
+        snapshotMap.put("patch", patch);
+        eventsSinceResync++;
+      }
     }
 
     @Override
-    public void onChildRemoved(DataSnapshot snapshot) {
-      sendEvent(EVENT_TYPE_CHILD_REMOVED, snapshot, null);
+    public void doFrame(long frameTimeNanos) {
+      flushScheduled = false;
+      flush();
     }
 
-    @Override
-    public void onChildChanged(DataSnapshot snapshot, String previousChildName) {
-      sendEvent(EVENT_TYPE_CHILD_CHANGED, snapshot, previousChildName);
+    /** Sends the queued events, if any. */
+    private void flush() {
+      if (pendingEvents.isEmpty()) return;
+      Map<String, Object> arguments = new HashMap<>();
+      arguments.put("handle", handle);
+      arguments.put("events", new ArrayList<>(pendingEvents));
+      pendingEvents.clear();
+      channel.invokeMethod("Events", arguments);
     }
 
-    @Override
-    public void onChildMoved(DataSnapshot snapshot, String previousChildName) {
-      sendEvent(EVENT_TYPE_CHILD_MOVED, snapshot, previousChildName);
+    /** Drops the queued events once the observer has been removed. */
+    void cancel() {
+      if (flushScheduled) {
+        Choreographer.getInstance().removeFrameCallback(this);
+        flushScheduled = false;
+      }
+      pendingEvents.clear();
     }
 
-    @Override
-    public void onDataChange(DataSnapshot snapshot) {
-      sendEvent(EVENT_TYPE_VALUE, snapshot, null);
+    void onCancelled(DatabaseError error) {
+      // Events that occurred before the error are delivered first.
+      flush();
+      Map<String, Object> arguments = new HashMap<>();
+      arguments.put("handle", handle);
+      arguments.put("error", asMap(error));
+      channel.invokeMethod("Error", arguments);
     }
   }
 
@@ -290,6 +540,15 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
           break;
         }
 
+      case "FirebaseDatabase#batch":
+        {
+          @SuppressWarnings("unchecked")
+          List<Map<String, Object>> operations =
+              (List<Map<String, Object>>) arguments.get("operations");
+          new BatchWriter(database, operations, result).write();
+          break;
+        }
+
       case "DatabaseReference#set":
         {
           Object value = arguments.get("value");
@@ -429,6 +688,21 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
           break;
         }
 
+      case "DatabaseReference#runTransactionOperation":
+        {
+          @SuppressWarnings("unchecked")
+          Map<String, Object> operation = (Map<String, Object>) arguments.get("operation");
+          try {
+            OperationTransactionHandler.validate(operation);
+          } catch (IllegalArgumentException e) {
+            result.error("invalid_argument", e.getMessage(), null);
+            break;
+          }
+          getReference(database, arguments)
+              .runTransaction(new OperationTransactionHandler(operation, activity, result));
+          break;
+        }
+
       case "OnDisconnect#set":
         {
           Object value = arguments.get("value");
@@ -473,7 +747,7 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
       case "Query#keepSynced":
         {
           boolean value = (Boolean) arguments.get("value");
-          getQuery(database, arguments).keepSynced(value);
+          getQuery(database, arguments, getQueryKey(arguments)).keepSynced(value);
           result.success(null);
           break;
         }
@@ -482,28 +756,42 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
         {
           String eventType = (String) arguments.get("eventType");
           int handle = nextHandle++;
-          EventObserver observer = new EventObserver(eventType, handle);
+          Number maxBatchSize = (Number) arguments.get("maxBatchSize");
+          boolean shallow = Boolean.TRUE.equals(arguments.get("shallow"));
+          Number maxDepth = (Number) arguments.get("maxDepth");
+          Number resyncEvery = (Number) arguments.get("resyncEvery");
+          EventObserver observer =
+              new EventObserver(
+                  eventType,
+                  handle,
+                  maxBatchSize == null ? 0 : maxBatchSize.intValue(),
+                  shallow
+                      ? 1
+                      : maxDepth == null ? SnapshotValues.UNLIMITED_DEPTH : maxDepth.intValue(),
+                  shallow,
+                  resyncEvery == null ? 0 : resyncEvery.intValue());
           observers.put(handle, observer);
-          if (eventType.equals(EVENT_TYPE_VALUE)) {
-            getQuery(database, arguments).addValueEventListener(observer);
-          } else {
-            getQuery(database, arguments).addChildEventListener(observer);
+          String key = getQueryKey(arguments);
+          QueryListener listener = queryListeners.get(key);
+          if (listener == null) {
+            listener = new QueryListener(key, getQuery(database, arguments, key));
+            queryListeners.put(key, listener);
           }
+          listener.addObserver(observer);
           result.success(handle);
           break;
         }
 
       case "Query#removeObserver":
         {
-          Query query = getQuery(database, arguments);
           int handle = (Integer) arguments.get("handle");
           EventObserver observer = observers.get(handle);
           if (observer != null) {
-            if (observer.requestedEventType.equals(EVENT_TYPE_VALUE)) {
-              query.removeEventListener((ValueEventListener) observer);
-            } else {
-              query.removeEventListener((ChildEventListener) observer);
+            QueryListener listener = observer.listener;
+            if (listener != null && listener.removeObserver(observer)) {
+              if (queryListeners.get(listener.key) == listener) queryListeners.remove(listener.key);
             }
+            observer.cancel();
             observers.delete(handle);
             result.success(null);
             break;
@@ -521,7 +809,7 @@ public class FirebaseDatabasePlugin implements MethodCallHandler {
     }
   }
 
-  private static Map<String, Object> asMap(DatabaseError error) {
+  static Map<String, Object> asMap(DatabaseError error) {
     Map<String, Object> map = new HashMap<>();
     map.put("code", error.getCode());
     map.put("message", error.getMessage());
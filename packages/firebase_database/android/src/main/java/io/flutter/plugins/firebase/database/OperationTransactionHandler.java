@@ -0,0 +1,169 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import android.app.Activity;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+import io.flutter.plugin.common.MethodChannel.Result;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a built-in transaction operation natively, without calling back into Dart.
+ *
+ * <p>Supported operations are {@code increment} (with optional {@code min} and {@code max} bounds),
+ * {@code append} (with an optional {@code maxLength}, dropping the oldest items), {@code
+ * setIfAbsent} and {@code compareAndSet}.
+ *
+ * <p>The SDK first runs a transaction against its cached value, which may be stale. An operation
+ * whose precondition does not hold therefore leaves the data unchanged instead of aborting, so that
+ * the server still checks the value it ran against and retries it if that value was out of date.
+ * The transaction is only reported as committed if the operation was applied on its last run.
+ */
+class OperationTransactionHandler implements Transaction.Handler {
+  /** Returned by {@link #apply} when the operation does not apply, since null deletes the data. */
+  private static final Object NOT_APPLIED = new Object();
+
+  private final Map<String, Object> operation;
+  private final Activity activity;
+  private final Result result;
+  private volatile boolean applied = false;
+
+  OperationTransactionHandler(Map<String, Object> operation, Activity activity, Result result) {
+    this.operation = operation;
+    this.activity = activity;
+    this.result = result;
+  }
+
+  /**
+   * Checks the arguments of {@code operation} before it is run.
+   *
+   * @throws IllegalArgumentException if the operation has an argument out of range, such as a
+   *     {@code maxLength} that is not positive.
+   */
+  static void validate(Map<String, Object> operation) {
+    Number maxLength = (Number) operation.get("maxLength");
+    if (maxLength != null && maxLength.intValue() < 1) {
+      throw new IllegalArgumentException("maxLength must be positive, was " + maxLength);
+    }
+  }
+
+  @Override
+  public Transaction.Result doTransaction(MutableData mutableData) {
+    Object current = mutableData.getValue();
+    Object updated = apply(current);
+    applied = updated != NOT_APPLIED;
+    if (applied) mutableData.setValue(updated);
+    return Transaction.success(mutableData);
+  }
+
+  /**
+   * Returns the new value, or {@link #NOT_APPLIED} if the operation does not apply to {@code
+   * current}.
+   */
+  private Object apply(Object current) {
+    String type = (String) operation.get("type");
+    Object value = operation.get("value");
+    switch (type) {
+      case "increment":
+        {
+          if (current != null && !(current instanceof Number)) return NOT_APPLIED;
+          Number sum = add((Number) current, (Number) value);
+          Number min = (Number) operation.get("min");
+          Number max = (Number) operation.get("max");
+          if (min != null && compare(sum, min) < 0) return NOT_APPLIED;
+          if (max != null && compare(sum, max) > 0) return NOT_APPLIED;
+          return sum;
+        }
+      case "append":
+        {
+          if (current != null && !(current instanceof List)) return NOT_APPLIED;
+          List<Object> list = new ArrayList<>();
+          if (current != null) list.addAll((List<?>) current);
+          list.add(value);
+          Number maxLength = (Number) operation.get("maxLength");
+          if (maxLength != null && list.size() > maxLength.intValue()) {
+            list = list.subList(list.size() - maxLength.intValue(), list.size());
+          }
+          return list;
+        }
+      case "setIfAbsent":
+        return current == null ? value : NOT_APPLIED;
+      case "compareAndSet":
+        return valuesEqual(current, operation.get("expected")) ? value : NOT_APPLIED;
+      default:
+        throw new IllegalArgumentException("Unknown transaction operation " + type);
+    }
+  }
+
+  @Override
+  public void onComplete(
+      DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
+    final Map<String, Object> completionMap = new HashMap<>();
+    if (databaseError != null) {
+      completionMap.put("error", FirebaseDatabasePlugin.asMap(databaseError));
+    }
+    completionMap.put("committed", committed && applied);
+    if (dataSnapshot != null) {
+      Map<String, Object> snapshotMap = new HashMap<>();
+      snapshotMap.put("key", dataSnapshot.getKey());
+      snapshotMap.put("value", dataSnapshot.getValue());
+      completionMap.put("snapshot", snapshotMap);
+    }
+    activity.runOnUiThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            result.success(completionMap);
+          }
+        });
+  }
+
+  private static boolean isIntegral(Number number) {
+    return !(number instanceof Double || number instanceof Float);
+  }
+
+  private static Number add(Number value, Number delta) {
+    if (value == null) value = 0L;
+    if (isIntegral(value) && isIntegral(delta)) return value.longValue() + delta.longValue();
+    return value.doubleValue() + delta.doubleValue();
+  }
+
+  private static int compare(Number a, Number b) {
+    if (isIntegral(a) && isIntegral(b)) return Long.compare(a.longValue(), b.longValue());
+    return Double.compare(a.doubleValue(), b.doubleValue());
+  }
+
+  /** Compares a value read from the database with one decoded from Dart. */
+  private static boolean valuesEqual(Object a, Object b) {
+    if (a == b) return true;
+    if (a == null || b == null) return false;
+    if (a instanceof Number && b instanceof Number) return compare((Number) a, (Number) b) == 0;
+    if (a instanceof Map && b instanceof Map) {
+      Map<?, ?> mapA = (Map<?, ?>) a;
+      Map<?, ?> mapB = (Map<?, ?>) b;
+      if (mapA.size() != mapB.size()) return false;
+      for (Map.Entry<?, ?> entry : mapA.entrySet()) {
+        if (!valuesEqual(entry.getValue(), mapB.get(entry.getKey()))) return false;
+      }
+      return true;
+    }
+    if (a instanceof List && b instanceof List) {
+      List<?> listA = (List<?>) a;
+      List<?> listB = (List<?>) b;
+      if (listA.size() != listB.size()) return false;
+      for (int i = 0; i < listA.size(); i++) {
+        if (!valuesEqual(listA.get(i), listB.get(i))) return false;
+      }
+      return true;
+    }
+    return a.equals(b);
+  }
+}
@@ -0,0 +1,38 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import com.google.firebase.database.DataSnapshot;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts snapshots to values for Dart without materializing more of the subtree than requested.
+ */
+class SnapshotValues {
+  /** Materializes the whole subtree. */
+  static final int UNLIMITED_DEPTH = -1;
+
+  private SnapshotValues() {}
+
+  /**
+   * Returns the value of {@code snapshot} down to {@code maxDepth} levels of children.
+   *
+   * <p>A node below that depth that has children of its own is replaced by {@code true} if {@code
+   * shallow} is set, and by its number of children otherwise. Nodes without children keep their
+   * value. Unlike {@link DataSnapshot#getValue()}, a limited depth always returns nodes with
+   * children as maps, even if their keys are array indexes.
+   */
+  static Object getValue(DataSnapshot snapshot, int maxDepth, boolean shallow) {
+    if (maxDepth == UNLIMITED_DEPTH) return snapshot.getValue();
+    if (!snapshot.hasChildren()) return snapshot.getValue();
+    if (maxDepth == 0) return shallow ? (Object) true : (Object) snapshot.getChildrenCount();
+    Map<String, Object> value = new HashMap<>();
+    for (DataSnapshot child : snapshot.getChildren()) {
+      value.put(child.getKey(), getValue(child, maxDepth - 1, shallow));
+    }
+    return value;
+  }
+}
@@ -0,0 +1,58 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package io.flutter.plugins.firebase.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes structural patches between two snapshot values, so that observers can send what changed
+ * instead of the whole value.
+ */
+class ValueDiffs {
+  private ValueDiffs() {}
+
+  /**
+   * Returns a patch that turns {@code oldValue} into {@code newValue}, or null if the root itself
+   * changed and the full value should be sent instead.
+   *
+   * <p>The patch holds an {@code updated} map from the slash-separated path of each changed or
+   * added node to its new value, and a {@code removed} list of the paths of removed nodes. Maps are
+   * compared key by key; lists and other values are replaced as a whole when they differ.
+   */
+  static Map<String, Object> diff(Object oldValue, Object newValue) {
+    if (!(oldValue instanceof Map) || !(newValue instanceof Map)) return null;
+    Map<String, Object> updated = new HashMap<>();
+    List<String> removed = new ArrayList<>();
+    diff((Map<?, ?>) oldValue, (Map<?, ?>) newValue, "", updated, removed);
+    Map<String, Object> patch = new HashMap<>();
+    patch.put("updated", updated);
+    patch.put("removed", removed);
+    return patch;
+  }
+
+  private static void diff(
+      Map<?, ?> oldMap,
+      Map<?, ?> newMap,
+      String prefix,
+      Map<String, Object> updated,
+      List<String> removed) {
+    for (Object key : oldMap.keySet()) {
+      if (!newMap.containsKey(key)) removed.add(prefix + key);
+    }
+    for (Map.Entry<?, ?> entry : newMap.entrySet()) {
+      String path = prefix + entry.getKey();
+      Object oldValue = oldMap.get(entry.getKey());
+      Object newValue = entry.getValue();
+      if (oldValue instanceof Map && newValue instanceof Map) {
+        diff((Map<?, ?>) oldValue, (Map<?, ?>) newValue, path + "/", updated, removed);
+      } else if (oldValue == null || !oldValue.equals(newValue)) {
+        updated.put(path, newValue);
+      }
+    }
+  }
+}
@@ -12,8 +12,11 @@ import 'package:flutter/services.dart';
 
 import 'src/utils/push_id_generator.dart';
 
+part 'src/database_batch.dart';
 part 'src/database_reference.dart';
 part 'src/event.dart';
 part 'src/firebase_database.dart';
 part 'src/query.dart';
+part 'src/transaction_operation.dart';
+part 'src/value_patch.dart';
 part 'src/on_disconnect.dart';
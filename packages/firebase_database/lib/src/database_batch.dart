@@ -0,0 +1,98 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+part of firebase_database;
+
+/// An ordered list of writes that are sent to the platform together.
+///
+/// Get a batch with [FirebaseDatabase.batch], add writes to it and call
+/// [commit]. Unlike Firestore batches, the writes are not atomic: each
+/// succeeds or fails on its own. On Android, consecutive writes to separate
+/// locations are combined into a single multi-path update, in which case
+/// they succeed or fail together.
+class DatabaseBatch {
+  DatabaseBatch._(this._database);
+
+  final FirebaseDatabase _database;
+  final List<Map<String, dynamic>> _operations = <Map<String, dynamic>>[];
+  bool _committed = false;
+
+  /// Adds a [DatabaseReference.set] of [value] to [reference].
+  void set(DatabaseReference reference, dynamic value, {dynamic priority}) {
+    _add(<String, dynamic>{
+      'type': 'set',
+      'path': reference.path,
+      'value': value,
+      'priority': priority,
+    });
+  }
+
+  /// Adds a [DatabaseReference.update] of [reference] with [value].
+  void update(DatabaseReference reference, Map<String, dynamic> value) {
+    _add(<String, dynamic>{
+      'type': 'update',
+      'path': reference.path,
+      'value': value,
+    });
+  }
+
+  /// Adds a [DatabaseReference.setPriority] of [reference].
+  void setPriority(DatabaseReference reference, dynamic priority) {
+    _add(<String, dynamic>{
+      'type': 'setPriority',
+      'path': reference.path,
+      'priority': priority,
+    });
+  }
+
+  void _add(Map<String, dynamic> operation) {
+    assert(!_committed, 'The batch has already been committed.');
+    _operations.add(operation);
+  }
+
+  /// Issues the writes in the order they were added.
+  ///
+  /// Completes once every write has completed, with the error of each write
+  /// that failed, or null for each one that succeeded.
+  Future<List<DatabaseError>> commit() async {
+    assert(!_committed, 'The batch has already been committed.');
+    _committed = true;
+    List<dynamic> results;
+    try {
+      results = await _database._channel.invokeListMethod<dynamic>(
+        'FirebaseDatabase#batch',
+        <String, dynamic>{
+          'app': _database.app?.name,
+          'databaseURL': _database.databaseURL,
+          'operations': _operations,
+        },
+      );
+    } on MissingPluginException {
+      return Future.wait(_operations.map(_write));
+    }
+    return results
+        .map((dynamic error) => error == null ? null : DatabaseError._(error))
+        .toList();
+  }
+
+  /// Issues a single write, for platforms without batch support.
+  Future<DatabaseError> _write(Map<String, dynamic> operation) async {
+    final Map<String, dynamic> arguments = <String, dynamic>{
+      'app': _database.app?.name,
+      'databaseURL': _database.databaseURL,
+    }..addAll(operation);
+    final String type = arguments.remove('type');
+    try {
+      await _database._channel
+          .invokeMethod<void>('DatabaseReference#$type', arguments);
+      return null;
+    } on PlatformException catch (e) {
+      return DatabaseError._(<String, dynamic>{
+        'code': int.tryParse(e.code),
+        'message': e.message,
+        'details': e.details,
+      });
+    }
+  }
+}
@@ -184,6 +184,30 @@ class DatabaseReference extends Query {
     return completer.future;
   }
 
+  /// Runs [operation] as a transaction at this location.
+  ///
+  /// Unlike [runTransaction], the platform applies the operation itself, so
+  /// the transaction does not wait for Dart each time it is retried.
+  /// Currently only supported on Android.
+  Future<TransactionResult> runTransactionOperation(
+      TransactionOperation operation) async {
+    final Map<dynamic, dynamic> map =
+        await _database._channel.invokeMapMethod<dynamic, dynamic>(
+      'DatabaseReference#runTransactionOperation',
+      <String, dynamic>{
+        'app': _database.app?.name,
+        'databaseURL': _database.databaseURL,
+        'path': path,
+        'operation': operation._toMap(),
+      },
+    );
+    return TransactionResult._(
+      map['error'] != null ? DatabaseError._(map['error']) : null,
+      map['committed'],
+      map['snapshot'] != null ? DataSnapshot._(map['snapshot']) : null,
+    );
+  }
+
   OnDisconnect onDisconnect() {
     return OnDisconnect._(_database, this);
   }
@@ -16,8 +16,16 @@ class FirebaseDatabase {
     _channel.setMethodCallHandler((MethodCall call) async {
       switch (call.method) {
         case 'Event':
-          final Event event = Event._(call.arguments);
-          _observers[call.arguments['handle']].add(event);
+          final int handle = call.arguments['handle'];
+          _observers[handle]
+              .add(Event._(_resolveValue(handle, call.arguments)));
+          return null;
+        case 'Events':
+          final int handle = call.arguments['handle'];
+          final StreamController<Event> controller = _observers[handle];
+          for (dynamic event in call.arguments['events']) {
+            controller.add(Event._(_resolveValue(handle, event)));
+          }
           return null;
         case 'Error':
           final DatabaseError error = DatabaseError._(call.arguments['error']);
@@ -42,6 +50,28 @@ class FirebaseDatabase {
   static final Map<int, StreamController<Event>> _observers =
       <int, StreamController<Event>>{};
 
+  /// The last value sent to each observer created with [Query.valueDiffs].
+  static final Map<int, dynamic> _lastValues = <int, dynamic>{};
+
+  /// Returns [event] with the value of its snapshot, applying the patch it
+  /// carries instead if it was sent to an observer of value diffs.
+  static Map<dynamic, dynamic> _resolveValue(
+      int handle, Map<dynamic, dynamic> event) {
+    if (!_lastValues.containsKey(handle)) return event;
+    final Map<dynamic, dynamic> snapshot = event['snapshot'];
+    if (!snapshot.containsKey('patch')) {
+      _lastValues[handle] = snapshot['value'];
+      return event;
+    }
+    final dynamic value =
+        _applyValuePatch(_lastValues[handle], snapshot['patch']);
+    _lastValues[handle] = value;
+    return <dynamic, dynamic>{
+      'snapshot': <dynamic, dynamic>{'key': snapshot['key'], 'value': value},
+      'previousSiblingKey': event['previousSiblingKey'],
+    };
+  }
+
   static final Map<int, TransactionHandler> _transactions =
       <int, TransactionHandler>{};
 
@@ -69,6 +99,10 @@ class FirebaseDatabase {
   /// Gets a DatabaseReference for the root of your Firebase Database.
   DatabaseReference reference() => DatabaseReference._(this, <String>[]);
 
+  /// Gets a [DatabaseBatch] for issuing several writes with a single platform
+  /// call.
+  DatabaseBatch batch() => DatabaseBatch._(this);
+
   /// Attempts to sets the database persistence to [enabled].
   ///
   /// This property must be set before calling methods on database references
@@ -9,17 +9,24 @@ class Query {
   Query._(
       {@required FirebaseDatabase database,
       @required List<String> pathComponents,
-      Map<String, dynamic> parameters})
+      Map<String, dynamic> parameters,
+      Map<String, dynamic> observeOptions})
       : _database = database,
         _pathComponents = pathComponents,
         _parameters = parameters ??
             Map<String, dynamic>.unmodifiable(<String, dynamic>{}),
+        _observeOptions = observeOptions ??
+            Map<String, dynamic>.unmodifiable(<String, dynamic>{}),
         assert(database != null);
 
   final FirebaseDatabase _database;
   final List<String> _pathComponents;
   final Map<String, dynamic> _parameters;
 
+  /// Options that change how events are delivered, rather than which data
+  /// the query selects.
+  final Map<String, dynamic> _observeOptions;
+
   /// Slash-delimited path representing the database location of this query.
   String get path => _pathComponents.join('/');
 
@@ -30,6 +37,18 @@ class Query {
       parameters: Map<String, dynamic>.unmodifiable(
         Map<String, dynamic>.from(_parameters)..addAll(parameters),
       ),
+      observeOptions: _observeOptions,
+    );
+  }
+
+  Query _copyWithObserveOptions(Map<String, dynamic> observeOptions) {
+    return Query._(
+      database: _database,
+      pathComponents: _pathComponents,
+      parameters: _parameters,
+      observeOptions: Map<String, dynamic>.unmodifiable(
+        Map<String, dynamic>.from(_observeOptions)..addAll(observeOptions),
+      ),
     );
   }
 
@@ -55,10 +74,14 @@ class Query {
             'path': path,
             'parameters': _parameters,
             'eventType': eventType.toString(),
-          },
+          }..addAll(_observeOptions),
         ).then<int>((dynamic result) => result);
         _handle.then((int handle) {
           FirebaseDatabase._observers[handle] = controller;
+          if (eventType == _EventType.value &&
+              _observeOptions.containsKey('resyncEvery')) {
+            FirebaseDatabase._lastValues[handle] = null;
+          }
         });
       },
       onCancel: () {
@@ -74,6 +97,7 @@ class Query {
             },
           );
           FirebaseDatabase._observers.remove(handle);
+          FirebaseDatabase._lastValues.remove(handle);
         });
       },
     );
@@ -98,6 +122,64 @@ class Query {
   /// Fires when the data at this location is updated. `previousChildKey` is null.
   Stream<Event> get onValue => _observe(_EventType.value);
 
+  /// Returns a query whose observers receive their events in batches.
+  ///
+  /// Instead of one platform message per event, events are collected on the
+  /// platform and sent together once per frame, or as soon as
+  /// [maxBatchSize] events are waiting. Events are still delivered to the
+  /// streams one at a time and in order, with their `previousSiblingKey`.
+  /// This reduces the cost of observing lists with many children, at the
+  /// price of up to one frame of latency.
+  ///
+  /// Batching is only available on Android; other platforms deliver events
+  /// individually.
+  Query batchEvents({int maxBatchSize = 100}) {
+    assert(maxBatchSize != null && maxBatchSize > 0);
+    return _copyWithObserveOptions(
+        <String, dynamic>{'maxBatchSize': maxBatchSize});
+  }
+
+  /// Returns a query whose observers only receive the first level of each
+  /// snapshot.
+  ///
+  /// Children that have children of their own are replaced by `true`, so a
+  /// snapshot of a node with large subtrees only carries its keys and
+  /// primitive values.
+  ///
+  /// Only available on Android; other platforms return the full values.
+  Query shallow() {
+    return _copyWithObserveOptions(<String, dynamic>{'shallow': true});
+  }
+
+  /// Returns a query whose observers receive snapshot values down to
+  /// [depth] levels of children.
+  ///
+  /// Nodes below that depth that have children of their own are replaced by
+  /// their number of children. Nodes with children are always returned as
+  /// maps, even if their keys are array indexes.
+  ///
+  /// Only available on Android; other platforms return the full values.
+  Query maxDepth(int depth) {
+    assert(depth != null && depth > 0);
+    return _copyWithObserveOptions(<String, dynamic>{'maxDepth': depth});
+  }
+
+  /// Returns a query whose value observers receive changes as patches.
+  ///
+  /// Instead of resending the whole value whenever any part of it changes,
+  /// the platform sends the paths that were changed, added or removed since
+  /// the last value, and the full value every [resyncEvery] events. The
+  /// streams still deliver full values. This reduces the cost of observing
+  /// large nodes that change a little at a time. Child events are not
+  /// affected.
+  ///
+  /// Only available on Android; other platforms send the full values.
+  Query valueDiffs({int resyncEvery = 20}) {
+    assert(resyncEvery != null && resyncEvery > 0);
+    return _copyWithObserveOptions(
+        <String, dynamic>{'resyncEvery': resyncEvery});
+  }
+
   /// Create a query constrained to only return child nodes with a value greater
   /// than or equal to the given value, using the given orderBy directive or
   /// priority as default, and optionally only child nodes with a key greater
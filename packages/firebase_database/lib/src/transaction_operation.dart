@@ -0,0 +1,61 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+part of firebase_database;
+
+/// A transactional update that the platform runs without calling back into
+/// Dart, for use with [DatabaseReference.runTransactionOperation].
+///
+/// The transaction is reported as not committed if the operation does not
+/// apply to the current value, in which case the value is left unchanged.
+class TransactionOperation {
+  TransactionOperation._(this._type, this._arguments);
+
+  /// Adds [delta] to the number at the location, treating an empty location
+  /// as zero.
+  ///
+  /// Does not apply if the value is not a number, or if the result would fall
+  /// below [min] or exceed [max].
+  TransactionOperation.increment(num delta, {num min, num max})
+      : this._('increment',
+            <String, dynamic>{'value': delta, 'min': min, 'max': max});
+
+  /// Appends [value] to the list at the location, treating an empty location
+  /// as an empty list.
+  ///
+  /// If [maxLength] is given, the oldest items are dropped so that the list
+  /// holds at most [maxLength] items. It must be positive. Does not apply if
+  /// the value is not a list.
+  factory TransactionOperation.append(dynamic value, {int maxLength}) {
+    assert(maxLength == null || maxLength > 0);
+    return TransactionOperation._(
+        'append', <String, dynamic>{'value': value, 'maxLength': maxLength});
+  }
+
+  /// Sets the location to [value] if it is empty.
+  TransactionOperation.setIfAbsent(dynamic value)
+      : this._('setIfAbsent', <String, dynamic>{'value': value});
+
+  /// Sets the location to [value] if it currently holds [expected].
+  TransactionOperation.compareAndSet(dynamic expected, dynamic value)
+      : this._('compareAndSet', <String, dynamic>{
+          'expected': expected,
+          'value': value,
+        });
+
+  final String _type;
+  final Map<String, dynamic> _arguments;
+
+  Map<String, dynamic> _toMap() {
+    final Map<String, dynamic> operation = <String, dynamic>{'type': _type};
+    _arguments.forEach((String key, dynamic value) {
+      // Bounds and limits that are not given are left out, but a null value
+      // or expected value is meaningful.
+      if (value != null || key == 'value' || key == 'expected') {
+        operation[key] = value;
+      }
+    });
+    return operation;
+  }
+}
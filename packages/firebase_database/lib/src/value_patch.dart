@@ -0,0 +1,51 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+part of firebase_database;
+
+/// Returns the result of applying [patch] to [value], the last value sent
+/// to an observer created with [Query.valueDiffs].
+///
+/// The patch holds an `updated` map from slash-separated paths to their new
+/// values and a `removed` list of paths. Maps along the patched paths are
+/// copied, so that values already delivered in earlier snapshots do not
+/// change.
+dynamic _applyValuePatch(dynamic value, Map<dynamic, dynamic> patch) {
+  final Map<dynamic, dynamic> root = Map<dynamic, dynamic>.from(value);
+  final Set<Map<dynamic, dynamic>> copies =
+      Set<Map<dynamic, dynamic>>.identity()..add(root);
+
+  // Returns the copied map that holds the last key of [keys], creating the
+  // maps along the way if [create] is set, or null if it does not exist.
+  Map<dynamic, dynamic> parentOf(List<String> keys, bool create) {
+    Map<dynamic, dynamic> node = root;
+    for (String key in keys.take(keys.length - 1)) {
+      final dynamic child = node[key];
+      Map<dynamic, dynamic> copy;
+      if (child is Map) {
+        copy = copies.contains(child)
+            ? child
+            : Map<dynamic, dynamic>.from(child);
+      } else if (create) {
+        copy = <dynamic, dynamic>{};
+      } else {
+        return null;
+      }
+      copies.add(copy);
+      node[key] = copy;
+      node = copy;
+    }
+    return node;
+  }
+
+  for (String path in patch['removed']) {
+    final List<String> keys = path.split('/');
+    parentOf(keys, false)?.remove(keys.last);
+  }
+  patch['updated'].forEach((dynamic path, dynamic newValue) {
+    final List<String> keys = path.split('/');
+    parentOf(keys, true)[keys.last] = newValue;
+  });
+  return root;
+}
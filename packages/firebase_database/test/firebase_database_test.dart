@@ -78,6 +78,27 @@ void main() {
                 'value': updatedValue,
               }
             };
+          case 'FirebaseDatabase#batch':
+            return <dynamic>[
+              null,
+              <String, dynamic>{
+                'code': -3,
+                'message': 'Permission denied',
+                'details': null,
+              },
+              null,
+            ];
+          case 'DatabaseReference#runTransactionOperation':
+            final Map<dynamic, dynamic> operation =
+                methodCall.arguments['operation'];
+            return <String, dynamic>{
+              'committed': true,
+              'snapshot': <String, dynamic>{
+                'key': 'counter',
+                'value':
+                    operation['type'] == 'increment' ? 3 : operation['value'],
+              },
+            };
           default:
             return null;
         }
@@ -176,6 +197,50 @@ void main() {
       );
     });
 
+    test('batch', () async {
+      final DatabaseReference ref = database.reference();
+      final DatabaseBatch batch = database.batch()
+        ..set(ref.child('foo'), 'bar')
+        ..update(ref.child('baz'), <String, dynamic>{'qux': 1})
+        ..setPriority(ref.child('foo'), 2);
+      final List<DatabaseError> errors = await batch.commit();
+      expect(
+        log,
+        <Matcher>[
+          isMethodCall(
+            'FirebaseDatabase#batch',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'databaseURL': databaseURL,
+              'operations': <Map<String, dynamic>>[
+                <String, dynamic>{
+                  'type': 'set',
+                  'path': 'foo',
+                  'value': 'bar',
+                  'priority': null,
+                },
+                <String, dynamic>{
+                  'type': 'update',
+                  'path': 'baz',
+                  'value': <String, dynamic>{'qux': 1},
+                },
+                <String, dynamic>{
+                  'type': 'setPriority',
+                  'path': 'foo',
+                  'priority': 2,
+                },
+              ],
+            },
+          ),
+        ],
+      );
+      expect(errors, hasLength(3));
+      expect(errors[0], isNull);
+      expect(errors[1].code, -3);
+      expect(errors[1].message, 'Permission denied');
+      expect(errors[2], isNull);
+    });
+
     group('$DatabaseReference', () {
       test('set', () async {
         final dynamic value = <String, dynamic>{'hello': 'world'};
@@ -283,6 +348,76 @@ void main() {
           throwsA(isInstanceOf<AssertionError>()),
         );
       });
+
+      test('runTransactionOperation', () async {
+        final DatabaseReference ref = database.reference().child('counter');
+        final TransactionResult transactionResult =
+            await ref.runTransactionOperation(
+                TransactionOperation.increment(1, max: 10));
+        await ref.runTransactionOperation(
+            TransactionOperation.append('item', maxLength: 5));
+        await ref.runTransactionOperation(TransactionOperation.setIfAbsent(0));
+        await ref.runTransactionOperation(
+            TransactionOperation.compareAndSet(null, 1));
+        Matcher operationCall(Map<String, dynamic> operation) => isMethodCall(
+              'DatabaseReference#runTransactionOperation',
+              arguments: <String, dynamic>{
+                'app': app.name,
+                'databaseURL': databaseURL,
+                'path': 'counter',
+                'operation': operation,
+              },
+            );
+        expect(
+          log,
+          <Matcher>[
+            operationCall(
+                <String, dynamic>{'type': 'increment', 'value': 1, 'max': 10}),
+            operationCall(<String, dynamic>{
+              'type': 'append',
+              'value': 'item',
+              'maxLength': 5,
+            }),
+            operationCall(<String, dynamic>{'type': 'setIfAbsent', 'value': 0}),
+            operationCall(<String, dynamic>{
+              'type': 'compareAndSet',
+              'value': 1,
+              'expected': null,
+            }),
+          ],
+        );
+        expect(transactionResult.committed, isTrue);
+        expect(transactionResult.error, isNull);
+        expect(transactionResult.dataSnapshot.value, 3);
+      });
+
+      test('runTransactionOperation, compareAndSet to null', () async {
+        final TransactionResult transactionResult = await database
+            .reference()
+            .child('counter')
+            .runTransactionOperation(
+                TransactionOperation.compareAndSet(3, null));
+        expect(
+          log,
+          <Matcher>[
+            isMethodCall(
+              'DatabaseReference#runTransactionOperation',
+              arguments: <String, dynamic>{
+                'app': app.name,
+                'databaseURL': databaseURL,
+                'path': 'counter',
+                'operation': <String, dynamic>{
+                  'type': 'compareAndSet',
+                  'value': null,
+                  'expected': 3,
+                },
+              },
+            ),
+          ],
+        );
+        expect(transactionResult.committed, isTrue);
+        expect(transactionResult.dataSnapshot.value, isNull);
+      });
     });
 
     group('$OnDisconnect', () {
@@ -566,6 +701,169 @@ void main() {
           ],
         );
       });
+      test('observing value diffs', () async {
+        mockHandleId = 88;
+        final Query query = database.reference().child('foo').valueDiffs();
+        Future<void> simulateEvent(Map<String, dynamic> snapshot) async {
+          // TODO(hterkelsen): Remove this when defaultBinaryMessages is in stable.
+          // https://github.com/flutter/flutter/issues/33446
+          // ignore: deprecated_member_use
+          await BinaryMessages.handlePlatformMessage(
+            channel.name,
+            channel.codec.encodeMethodCall(
+              MethodCall('Event', <String, dynamic>{
+                'handle': 88,
+                'snapshot': snapshot,
+              }),
+            ),
+            (_) {},
+          );
+        }
+
+        final AsyncQueue<Event> events = AsyncQueue<Event>();
+        final StreamSubscription<Event> subscription =
+            query.onValue.listen(events.add);
+        await Future<void>.delayed(const Duration(seconds: 0));
+
+        await simulateEvent(<String, dynamic>{
+          'key': 'foo',
+          'value': <String, dynamic>{
+            'a': 1,
+            'b': <String, dynamic>{'c': 2, 'd': 3},
+          },
+        });
+        await simulateEvent(<String, dynamic>{
+          'key': 'foo',
+          'patch': <String, dynamic>{
+            'updated': <String, dynamic>{'b/c': 4, 'e/f': 5},
+            'removed': <String>['a', 'b/d'],
+          },
+        });
+        final Event event1 = await events.remove();
+        final Event event2 = await events.remove();
+        expect(event1.snapshot.value, <String, dynamic>{
+          'a': 1,
+          'b': <String, dynamic>{'c': 2, 'd': 3},
+        });
+        expect(event2.snapshot.key, 'foo');
+        expect(event2.snapshot.value, <String, dynamic>{
+          'b': <String, dynamic>{'c': 4},
+          'e': <String, dynamic>{'f': 5},
+        });
+
+        subscription.cancel();
+        await Future<void>.delayed(const Duration(seconds: 0));
+        expect(
+          log.first,
+          isMethodCall(
+            'Query#observe',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'databaseURL': databaseURL,
+              'path': 'foo',
+              'parameters': <String, dynamic>{},
+              'eventType': '_EventType.value',
+              'resyncEvery': 20,
+            },
+          ),
+        );
+      });
+
+      test('observing with shallow and maxDepth', () async {
+        final DatabaseReference reference = database.reference().child('foo');
+        final StreamSubscription<Event> shallow =
+            reference.shallow().onValue.listen((_) {});
+        final StreamSubscription<Event> limited =
+            reference.maxDepth(2).onChildAdded.listen((_) {});
+        await Future<void>.delayed(const Duration(seconds: 0));
+        shallow.cancel();
+        limited.cancel();
+        await Future<void>.delayed(const Duration(seconds: 0));
+
+        final Map<String, dynamic> arguments = <String, dynamic>{
+          'app': app.name,
+          'databaseURL': databaseURL,
+          'path': 'foo',
+          'parameters': <String, dynamic>{},
+        };
+        expect(
+          log.where((MethodCall call) => call.method == 'Query#observe'),
+          <Matcher>[
+            isMethodCall(
+              'Query#observe',
+              arguments: <String, dynamic>{
+                'eventType': '_EventType.value',
+                'shallow': true,
+              }..addAll(arguments),
+            ),
+            isMethodCall(
+              'Query#observe',
+              arguments: <String, dynamic>{
+                'eventType': '_EventType.childAdded',
+                'maxDepth': 2,
+              }..addAll(arguments),
+            ),
+          ],
+        );
+      });
+      test('observing batched child events', () async {
+        mockHandleId = 93;
+        final String path = 'foo';
+        final Query query =
+            database.reference().child(path).batchEvents(maxBatchSize: 50);
+        final AsyncQueue<Event> events = AsyncQueue<Event>();
+
+        // Subscribe and allow subscription to complete.
+        final StreamSubscription<Event> subscription =
+            query.onChildAdded.listen(events.add);
+        await Future<void>.delayed(const Duration(seconds: 0));
+
+        // ignore: deprecated_member_use
+        await BinaryMessages.handlePlatformMessage(
+          channel.name,
+          channel.codec.encodeMethodCall(
+            MethodCall('Events', <String, dynamic>{
+              'handle': 93,
+              'events': <Map<String, dynamic>>[
+                <String, dynamic>{
+                  'snapshot': <String, dynamic>{'key': 'a', 'value': 1},
+                  'previousSiblingKey': null,
+                },
+                <String, dynamic>{
+                  'snapshot': <String, dynamic>{'key': 'b', 'value': 2},
+                  'previousSiblingKey': 'a',
+                },
+              ],
+            }),
+          ),
+          (_) {},
+        );
+        final Event event1 = await events.remove();
+        final Event event2 = await events.remove();
+        expect(event1.snapshot.key, 'a');
+        expect(event1.previousSiblingKey, isNull);
+        expect(event2.snapshot.key, 'b');
+        expect(event2.snapshot.value, 2);
+        expect(event2.previousSiblingKey, 'a');
+
+        subscription.cancel();
+        await Future<void>.delayed(const Duration(seconds: 0));
+
+        expect(
+          log.first,
+          isMethodCall(
+            'Query#observe',
+            arguments: <String, dynamic>{
+              'app': app.name,
+              'databaseURL': databaseURL,
+              'path': path,
+              'parameters': <String, dynamic>{},
+              'eventType': '_EventType.childAdded',
+              'maxBatchSize': 50,
+            },
+          ),
+        );
+      });
     });
   });
 }